@@ -5,11 +5,12 @@ import com.elmakers.mine.bukkit.api.action.CastContext;
 import com.elmakers.mine.bukkit.api.block.UndoList;
 import com.elmakers.mine.bukkit.api.spell.Spell;
 
-public class ActionBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatch {
+public class ActionBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatch, TimedBatch, PrioritizedBatch {
     private final int actionCount;
     private final CastContext context;
     private final ActionHandler handler;
     private boolean finished = false;
+    private final BatchTimer timer = new BatchTimer();
 
     public ActionBatch(CastContext context, ActionHandler handler) {
         this.context = context;
@@ -34,6 +35,16 @@ public class ActionBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatc
         return maxBlocks - context.getWorkAllowed();
     }
 
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
     @Override
     public boolean isFinished() {
         return finished;
@@ -44,10 +55,17 @@ public class ActionBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatc
         if (!finished) {
             handler.cancel(context);
             handler.finish(context);
+
+            UndoList undoList = context.getUndoList();
+            if (undoList instanceof com.elmakers.mine.bukkit.block.UndoList) {
+                com.elmakers.mine.bukkit.block.UndoList blockList = (com.elmakers.mine.bukkit.block.UndoList)undoList;
+                if (blockList.isDeferringAttachables()) {
+                    blockList.scanAttachables();
+                }
+            }
             context.finish();
 
             // Shouldn't need this anymore
-            UndoList undoList = context.getUndoList();
             if (undoList != null) {
                 undoList.setBatch(null);
             }
@@ -71,6 +89,11 @@ public class ActionBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatc
         return context.getSpell();
     }
 
+    @Override
+    public BatchPriority getPriority() {
+        return BatchPriority.INTERACTIVE;
+    }
+
     @Override
     public String getName() {
         Spell spell = getSpell();
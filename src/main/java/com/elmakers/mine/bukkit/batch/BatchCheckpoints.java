@@ -0,0 +1,280 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.elmakers.mine.bukkit.api.batch.Batch;
+import com.elmakers.mine.bukkit.api.magic.MageController;
+
+/**
+ * Saves the progress of long-running batches, so they can carry on after a restart.
+ *
+ * BatchSchedulers track every CheckpointBatch they run, and save them all to the
+ * checkpoint file every so often. The plugin should call save on shutdown, before
+ * batches are finished or cleared, and resume on startup.
+ *
+ * The work a batch has left is written once, to its own file in the data folder,
+ * the first time the batch is checkpointed. After that the checkpoint file only
+ * records how far each batch has got, so periodic saves stay small no matter how
+ * large the batches are.
+ *
+ * Supported batches are undos (UndoBatch) and planned builds (PlannedBatch, and
+ * PlanBatch once resumed). Resumed batches are not tied to a Mage.
+ *
+ * Checkpointing is off until a file is set. If the file already holds checkpoints
+ * from a previous run, nothing is saved until they have been resumed, so they are
+ * never overwritten. Resumed batches carry on using the data files they were saved
+ * with, and the old checkpoint is only replaced by the next save.
+ */
+public class BatchCheckpoints {
+    private static File file;
+    private static long interval = 60000;
+    private static long lastSave = 0;
+    private static int nextId = 0;
+    // Set while the checkpoint file holds a previous run's batches that have not been resumed
+    private static boolean resumePending = false;
+    private static final Map<CheckpointBatch, Checkpoint> batches = new IdentityHashMap<CheckpointBatch, Checkpoint>();
+
+    private static class Checkpoint {
+        private final CheckpointBatch batch;
+        // The file holding the batch's work, null until first written
+        private File dataFile;
+
+        private Checkpoint(CheckpointBatch batch) {
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * @param checkpointFile The file to save checkpoints to, or null to disable checkpoints
+     */
+    public static void setFile(File checkpointFile) {
+        file = checkpointFile;
+        resumePending = file != null && file.exists();
+
+        // Anything already written went to the old data folder
+        for (Checkpoint checkpoint : batches.values()) {
+            checkpoint.dataFile = null;
+        }
+    }
+
+    public static File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The folder each batch's work is written to, next to the checkpoint file
+     */
+    public static File getDataFolder() {
+        if (file == null) return null;
+        String name = file.getName();
+        int extension = name.lastIndexOf('.');
+        if (extension > 0) {
+            name = name.substring(0, extension);
+        }
+        return new File(file.getParentFile(), name + "_data");
+    }
+
+    /**
+     * @param millis The minimum time between periodic saves
+     */
+    public static void setInterval(long millis) {
+        interval = Math.max(0, millis);
+    }
+
+    public static boolean isEnabled() {
+        return file != null;
+    }
+
+    public static void track(Batch batch) {
+        if (batch instanceof CheckpointBatch && !batches.containsKey(batch)) {
+            batches.put((CheckpointBatch)batch, new Checkpoint((CheckpointBatch)batch));
+        }
+    }
+
+    public static void untrack(Batch batch) {
+        // The data file is left until the next save, which may be the one at shutdown
+        if (batch instanceof CheckpointBatch) {
+            batches.remove(batch);
+        }
+    }
+
+    /**
+     * @return The number of batches that will be saved
+     */
+    public static int size() {
+        return batches.size();
+    }
+
+    /**
+     * Save checkpoints if the interval has passed since the last save.
+     */
+    public static void check() {
+        if (file == null) return;
+        long now = System.currentTimeMillis();
+        if (now < lastSave + interval) return;
+        save();
+    }
+
+    /**
+     * Save every unfinished batch to the checkpoint file.
+     *
+     * Batches being checkpointed for the first time have their work written out,
+     * the rest only save their progress. Data files no longer needed are removed.
+     *
+     * Nothing is saved while the file holds checkpoints waiting to be resumed.
+     *
+     * @return The number of batches saved
+     */
+    public static int save() {
+        if (file == null || resumePending) return 0;
+        lastSave = System.currentTimeMillis();
+
+        File dataFolder = getDataFolder();
+        YamlConfiguration config = new YamlConfiguration();
+        Set<String> dataFiles = new HashSet<String>();
+        int count = 0;
+        for (Checkpoint checkpoint : new ArrayList<Checkpoint>(batches.values())) {
+            CheckpointBatch batch = checkpoint.batch;
+            if (batch.isFinished()) {
+                batches.remove(batch);
+                continue;
+            }
+            String type = batch.getCheckpointType();
+            if (type == null) continue;
+            try {
+                if (checkpoint.dataFile == null) {
+                    YamlConfiguration data = new YamlConfiguration();
+                    batch.saveCheckpoint(data);
+                    File dataFile = nextDataFile(dataFolder);
+                    if (!dataFolder.exists()) {
+                        dataFolder.mkdirs();
+                    }
+                    data.save(dataFile);
+                    checkpoint.dataFile = dataFile;
+                }
+                ConfigurationSection node = config.createSection("batches." + count);
+                node.set("type", type);
+                node.set("data", checkpoint.dataFile.getName());
+                batch.saveProgress(node.createSection("progress"));
+                dataFiles.add(checkpoint.dataFile.getName());
+                count++;
+            } catch (Exception ex) {
+                Bukkit.getLogger().warning("Failed to checkpoint " + batch.getName() + ": " + ex.getMessage());
+            }
+        }
+        deleteData(dataFolder, dataFiles);
+
+        if (count == 0) {
+            if (file.exists()) {
+                file.delete();
+            }
+            return 0;
+        }
+        try {
+            File folder = file.getParentFile();
+            if (folder != null && !folder.exists()) {
+                folder.mkdirs();
+            }
+            config.save(file);
+        } catch (IOException ex) {
+            Bukkit.getLogger().warning("Failed to save batch checkpoints to " + file.getPath() + ": " + ex.getMessage());
+            return 0;
+        }
+        return count;
+    }
+
+    /**
+     * @return A data file that is not already in use, such as by a resumed batch
+     */
+    private static File nextDataFile(File dataFolder) {
+        File dataFile = new File(dataFolder, (nextId++) + ".yml");
+        while (dataFile.exists()) {
+            dataFile = new File(dataFolder, (nextId++) + ".yml");
+        }
+        return dataFile;
+    }
+
+    /**
+     * Remove the data files in a folder, other than the ones to keep.
+     */
+    private static void deleteData(File dataFolder, Set<String> keep) {
+        File[] files = dataFolder == null ? null : dataFolder.listFiles();
+        if (files == null) return;
+        for (File dataFile : files) {
+            if (!keep.contains(dataFile.getName())) {
+                dataFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Load the batches saved in the checkpoint file.
+     *
+     * This should be called once, on startup. The returned batches need to be added
+     * to a BatchScheduler to run.
+     *
+     * Nothing is deleted here. The resumed batches are tracked with the data files
+     * they were saved with, and only save their progress from then on, so the next
+     * save replaces this checkpoint without losing anything in between. Data files
+     * for batches that could not be resumed are removed by that save.
+     *
+     * @param controller The controller to resume batches with
+     * @return The resumed batches
+     */
+    public static List<Batch> resume(MageController controller) {
+        List<Batch> resumed = new ArrayList<Batch>();
+        resumePending = false;
+        if (file == null || !file.exists()) return resumed;
+
+        File dataFolder = getDataFolder();
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        ConfigurationSection saved = config.getConfigurationSection("batches");
+        if (saved != null) {
+            for (String key : saved.getKeys(false)) {
+                ConfigurationSection node = saved.getConfigurationSection(key);
+                String type = node.getString("type", "");
+                try {
+                    File dataFile = new File(dataFolder, node.getString("data", ""));
+                    if (!dataFile.isFile()) {
+                        throw new IOException("Missing data file " + dataFile.getName());
+                    }
+                    ConfigurationSection data = YamlConfiguration.loadConfiguration(dataFile);
+                    ConfigurationSection progress = node.getConfigurationSection("progress");
+                    if (progress == null) {
+                        progress = node.createSection("progress");
+                    }
+                    Batch batch = null;
+                    if (type.equals("undo")) {
+                        batch = UndoBatch.resume(controller, data, progress);
+                    } else if (type.equals("plan")) {
+                        batch = PlanBatch.resume(controller, data, progress);
+                    } else {
+                        Bukkit.getLogger().warning("Unknown batch checkpoint type: " + type);
+                    }
+                    if (batch instanceof CheckpointBatch) {
+                        Checkpoint checkpoint = new Checkpoint((CheckpointBatch)batch);
+                        checkpoint.dataFile = dataFile;
+                        batches.put(checkpoint.batch, checkpoint);
+                    }
+                    if (batch != null) {
+                        resumed.add(batch);
+                    }
+                } catch (Exception ex) {
+                    Bukkit.getLogger().warning("Failed to resume " + type + " batch: " + ex.getMessage());
+                }
+            }
+        }
+        return resumed;
+    }
+}
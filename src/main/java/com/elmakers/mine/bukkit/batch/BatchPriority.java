@@ -0,0 +1,41 @@
+package com.elmakers.mine.bukkit.batch;
+
+/**
+ * How urgently a batch should run, relative to others in the same BatchScheduler.
+ *
+ * While any batch of a more urgent rank is waiting, less urgent batches are held
+ * back, apart from a minimum share once they have waited too long. Batches of the
+ * same rank split the budget by weight.
+ */
+public enum BatchPriority {
+    // Spells being cast by players
+    INTERACTIVE(0, 4),
+    // Undos a player asked for
+    UNDO(0, 4),
+    // Scheduled undos, and batches that don't say
+    NORMAL(1, 2),
+    // Bulk work nobody is waiting on, such as rollbacks and commits
+    BACKGROUND(2, 1);
+
+    private final int rank;
+    private final int weight;
+
+    BatchPriority(int rank, int weight) {
+        this.rank = rank;
+        this.weight = weight;
+    }
+
+    /**
+     * @return The urgency rank, lower runs first
+     */
+    public int getRank() {
+        return rank;
+    }
+
+    /**
+     * @return The relative share of the budget among batches that run together
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,222 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.elmakers.mine.bukkit.api.batch.Batch;
+
+/**
+ * Runs a set of batches each tick within a shared time budget.
+ *
+ * Only the batches of the most urgent BatchPriority rank present run, so interactive
+ * casts and player undos preempt background work. Preempted batches are simply
+ * skipped, and carry on from where they were once it is their turn. A batch that
+ * has not run for the starvation time runs anyway, alongside the urgent ones.
+ *
+ * The remaining budget is split by priority weight between the batches that have not
+ * run yet this tick, and each batch turns its share into a unit count using its own
+ * BatchTimer. Once the budget is spent the rest of the batches wait for the next tick,
+ * starting from where this tick left off so no batch is starved.
+ *
+ * The budget is only as exact as the per-unit estimates: a batch always gets at least one
+ * unit, and a single unit can run long.
+ */
+public class BatchScheduler {
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int nextBatch = 0;
+    private long lastNanos = 0;
+    private long starvationMillis = 1000;
+
+    private static class Entry {
+        private final Batch batch;
+        private final BatchTimer timer;
+        private final BatchPriority priority;
+        private long lastRun;
+
+        private Entry(Batch batch) {
+            this.batch = batch;
+            this.timer = batch instanceof TimedBatch ? ((TimedBatch)batch).getTimer() : new BatchTimer();
+            this.priority = getPriority(batch);
+            this.lastRun = System.currentTimeMillis();
+        }
+    }
+
+    public static BatchPriority getPriority(Batch batch) {
+        BatchPriority priority = batch instanceof PrioritizedBatch ? ((PrioritizedBatch)batch).getPriority() : null;
+        return priority == null ? BatchPriority.NORMAL : priority;
+    }
+
+    public void add(Batch batch) {
+        entries.add(new Entry(batch));
+        BatchCheckpoints.track(batch);
+    }
+
+    public boolean remove(Batch batch) {
+        int index = indexOf(batch);
+        if (index < 0) return false;
+        entries.remove(index);
+        BatchCheckpoints.untrack(batch);
+        if (nextBatch > index) nextBatch--;
+        return true;
+    }
+
+    private int indexOf(Batch batch) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).batch == batch) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Set how long a preempted batch can wait before it is given a turn anyway.
+     *
+     * @param millis The longest time a batch goes without running
+     */
+    public void setStarvationMillis(long millis) {
+        starvationMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Run batches until the time budget is spent or every eligible batch has had a turn.
+     *
+     * Finished batches are removed.
+     *
+     * @param maxNanos The time budget for this tick, in nanoseconds
+     * @return The total number of units processed
+     */
+    public int process(long maxNanos) {
+        long start = System.nanoTime();
+        long deadline = start + maxNanos;
+        long now = System.currentTimeMillis();
+        int processed = 0;
+        int count = entries.size();
+        if (count == 0) {
+            lastNanos = 0;
+            return 0;
+        }
+
+        // Pick out the most urgent batches, plus any that have waited too long
+        int topRank = Integer.MAX_VALUE;
+        for (Entry entry : entries) {
+            topRank = Math.min(topRank, entry.priority.getRank());
+        }
+        if (nextBatch >= count) nextBatch = 0;
+        List<Entry> eligible = new ArrayList<Entry>(count);
+        int remainingWeight = 0;
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get((nextBatch + i) % count);
+            if (entry.priority.getRank() == topRank || now - entry.lastRun >= starvationMillis) {
+                eligible.add(entry);
+                remainingWeight += entry.priority.getWeight();
+            }
+        }
+
+        Entry stoppedAt = null;
+        List<Entry> finished = null;
+        for (Entry entry : eligible) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                stoppedAt = entry;
+                break;
+            }
+
+            int weight = entry.priority.getWeight();
+            long share = remaining * weight / remainingWeight;
+            remainingWeight -= weight;
+            Batch batch = entry.batch;
+            if (batch instanceof TimedBatch) {
+                processed += ((TimedBatch)batch).processTime(share);
+            } else {
+                processed += entry.timer.process(batch, share);
+            }
+            entry.lastRun = now;
+            if (batch.isFinished()) {
+                if (finished == null) finished = new ArrayList<Entry>();
+                finished.add(entry);
+            }
+        }
+
+        // Next tick starts with whichever batch missed out, or the one after the last to run
+        if (stoppedAt == null) {
+            Entry last = eligible.get(eligible.size() - 1);
+            nextBatch = entries.indexOf(last) + 1;
+        } else {
+            nextBatch = entries.indexOf(stoppedAt);
+        }
+        if (finished != null) {
+            for (Entry entry : finished) {
+                int index = entries.indexOf(entry);
+                entries.remove(index);
+                BatchCheckpoints.untrack(entry.batch);
+                if (nextBatch > index) nextBatch--;
+            }
+        }
+        if (nextBatch >= entries.size()) nextBatch = 0;
+
+        lastNanos = System.nanoTime() - start;
+        BatchCheckpoints.check();
+        return processed;
+    }
+
+    public void finishAll() {
+        for (Entry entry : entries) {
+            entry.batch.finish();
+        }
+        clear();
+    }
+
+    public void clear() {
+        for (Entry entry : entries) {
+            BatchCheckpoints.untrack(entry.batch);
+        }
+        entries.clear();
+        nextBatch = 0;
+    }
+
+    public List<Batch> getBatches() {
+        List<Batch> batches = new ArrayList<Batch>(entries.size());
+        for (Entry entry : entries) {
+            batches.add(entry.batch);
+        }
+        return batches;
+    }
+
+    /**
+     * @return The batches of a priority
+     */
+    public List<Batch> getBatches(BatchPriority priority) {
+        List<Batch> batches = new ArrayList<Batch>();
+        for (Entry entry : entries) {
+            if (entry.priority == priority) {
+                batches.add(entry.batch);
+            }
+        }
+        return batches;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return How long the last call to process took, in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return An estimate of how long it will take to finish every remaining batch, in nanoseconds
+     */
+    public long getEstimatedNanos() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.timer.getNanosPerUnit() * Math.max(0, entry.batch.remaining());
+        }
+        return total;
+    }
+}
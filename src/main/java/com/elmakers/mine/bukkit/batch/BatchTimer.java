@@ -0,0 +1,83 @@
+package com.elmakers.mine.bukkit.batch;
+
+import com.elmakers.mine.bukkit.api.batch.Batch;
+
+/**
+ * Tracks how long a batch takes per unit of work, so a time allowance can be turned
+ * into a unit count before the batch runs.
+ *
+ * The per-unit cost is an exponential moving average of measured runs, so it follows
+ * a batch whose cost changes as it goes, such as an undo moving into busier chunks.
+ */
+public class BatchTimer {
+    public static final long DEFAULT_NANOS_PER_UNIT = 50000;
+    private static final double SMOOTHING = 0.2;
+
+    private double nanosPerUnit;
+    private long totalNanos = 0;
+    private long totalUnits = 0;
+
+    public BatchTimer() {
+        this(DEFAULT_NANOS_PER_UNIT);
+    }
+
+    public BatchTimer(long initialNanosPerUnit) {
+        this.nanosPerUnit = Math.max(1, initialNanosPerUnit);
+    }
+
+    /**
+     * Convert a time allowance into a unit count, based on the current estimate.
+     *
+     * @param maxNanos The time allowance, in nanoseconds
+     * @return The number of units that should fit, always at least one
+     */
+    public int getUnits(long maxNanos) {
+        double units = maxNanos / nanosPerUnit;
+        if (units >= Integer.MAX_VALUE) return Integer.MAX_VALUE;
+        return Math.max(1, (int)units);
+    }
+
+    /**
+     * Record a measured run.
+     *
+     * Runs that did no work don't say anything about the per-unit cost, so they only
+     * count towards the totals.
+     *
+     * @param units The number of units processed
+     * @param elapsedNanos How long it took
+     */
+    public void record(int units, long elapsedNanos) {
+        totalNanos += elapsedNanos;
+        if (units <= 0) return;
+        totalUnits += units;
+        double measured = Math.max(1, (double)elapsedNanos / units);
+        nanosPerUnit = nanosPerUnit + SMOOTHING * (measured - nanosPerUnit);
+    }
+
+    /**
+     * Run a batch within a time allowance.
+     *
+     * @param batch The batch to run
+     * @param maxNanos The time allowance, in nanoseconds
+     * @return The number of units the batch processed
+     */
+    public int process(Batch batch, long maxNanos) {
+        int units = getUnits(maxNanos);
+        long start = System.nanoTime();
+        int processed = batch.process(units);
+        record(processed, System.nanoTime() - start);
+        return processed;
+    }
+
+    public long getNanosPerUnit() {
+        return (long)nanosPerUnit;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getTotalUnits() {
+        return totalUnits;
+    }
+}
@@ -3,25 +3,58 @@ package com.elmakers.mine.bukkit.batch;
 import java.util.Collection;
 
 import org.bukkit.Location;
+import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
 
 import com.elmakers.mine.bukkit.api.block.MaterialBrush;
 import com.elmakers.mine.bukkit.api.entity.EntityData;
+import com.elmakers.mine.bukkit.block.BlockWritePipeline;
+import com.elmakers.mine.bukkit.block.MaterialAndData;
 import com.elmakers.mine.bukkit.spell.BrushSpell;
 
 public abstract class BrushBatch extends SpellBatch {
     protected final BrushSpell spell;
+    protected final BlockWritePipeline writes;
 
     public BrushBatch(BrushSpell spell) {
         super(spell);
         this.spell = spell;
+        this.writes = new BlockWritePipeline(undoList.getApplyPhysics());
+        writes.setDeferPhysics(undoList.isDeferringPhysics());
     }
 
     protected abstract boolean contains(Location location);
 
+    /**
+     * Queue a block to be painted with the spell's current brush.
+     *
+     * The brush should already be updated for this block, and the block added to
+     * the undo list. Writes are applied by flush, which subclasses should call at
+     * the end of each process call, and which finish calls as well. Physics follows
+     * the undo list's settings, and any deferred physics is applied by finish.
+     *
+     * @param block The block to paint
+     * @return false if the block already matches the brush
+     */
+    protected boolean modify(Block block) {
+        MaterialBrush brush = spell.getBrush();
+        if (!(brush instanceof MaterialAndData)) return false;
+        return writes.writeCopy(block, (MaterialAndData)brush);
+    }
+
+    /**
+     * Apply queued brush writes, a chunk at a time.
+     *
+     * @return The number of blocks changed
+     */
+    protected int flush() {
+        return writes.flush();
+    }
+
     @Override
     public void finish() {
         if (!finished) {
+            writes.updateDeferred();
             MaterialBrush brush = spell.getBrush();
             if (brush != null && brush.hasEntities()) {
                 // Copy over new entities
@@ -0,0 +1,34 @@
+package com.elmakers.mine.bukkit.batch;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * A batch that can save its progress, to be picked up again after a restart.
+ *
+ * See BatchCheckpoints, which saves these periodically and resumes them on startup.
+ */
+public interface CheckpointBatch extends TimedBatch {
+    /**
+     * @return The kind of batch to resume as, or null if there is nothing to save yet
+     */
+    String getCheckpointType();
+
+    /**
+     * Save what is left of this batch.
+     *
+     * This is only called the first time the batch is checkpointed, so it may be
+     * slow. Work already done should not be saved, so that resuming does not repeat it.
+     *
+     * @param node The section to save to
+     */
+    void saveCheckpoint(ConfigurationSection node);
+
+    /**
+     * Save how far this batch has got since saveCheckpoint was called.
+     *
+     * This is called at every checkpoint, so should save no more than a position.
+     *
+     * @param node The section to save to
+     */
+    void saveProgress(ConfigurationSection node);
+}
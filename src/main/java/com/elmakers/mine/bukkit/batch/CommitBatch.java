@@ -0,0 +1,212 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.elmakers.mine.bukkit.api.block.BlockData;
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.UndoList;
+import com.elmakers.mine.bukkit.block.UndoOrdering;
+
+/**
+ * Commits UndoLists a few blocks at a time.
+ *
+ * Each list's blocks are put in chunk order, and then committed a chunk at a time, so
+ * the undo registry's chunk index is looked up once per chunk rather than once per block.
+ * Blocks dropped from a list while it waits (such as by a chunk unloading) are skipped.
+ *
+ * UndoQueues use a shared instance of this for lists that fall off the end of the
+ * queue. See evict, which detaches a list right away and leaves the commit to a task
+ * that runs every tick, within a time budget, until there is nothing left to commit.
+ */
+public class CommitBatch implements TimedBatch, PrioritizedBatch {
+    private static final CommitBatch evictions = new CommitBatch();
+    private static BukkitTask evictionTask;
+    private static long evictionBudget = 2000000;
+
+    protected final BatchTimer timer = new BatchTimer();
+    private final Deque<UndoList> pending = new ArrayDeque<UndoList>();
+    private int pendingBlocks = 0;
+
+    private UndoList current;
+    private BlockData[] blocks;
+    private int position;
+    private int committed = 0;
+
+    public CommitBatch() {
+    }
+
+    public CommitBatch(Collection<UndoList> lists) {
+        for (UndoList list : lists) {
+            add(list);
+        }
+    }
+
+    /**
+     * Detach a list from its undo queue now, and commit it over the following ticks.
+     *
+     * The list can no longer be undone once evicted. If there is no plugin to run the
+     * commit task with, the list is committed right away.
+     *
+     * @param list The list to evict
+     * @param plugin The plugin to schedule the commit task with
+     */
+    public static void evict(UndoList list, Plugin plugin) {
+        list.evict();
+        if (plugin == null || !plugin.isEnabled()) {
+            list.commit();
+            return;
+        }
+        evictions.add(list);
+        if (evictionTask == null) {
+            evictionTask = Bukkit.getScheduler().runTaskTimer(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    evictions.processTime(evictionBudget);
+                    if (evictions.isFinished()) {
+                        stopEvictions();
+                    }
+                }
+            }, 1, 1);
+        }
+    }
+
+    private static void stopEvictions() {
+        if (evictionTask != null) {
+            evictionTask.cancel();
+            evictionTask = null;
+        }
+    }
+
+    /**
+     * Commit every evicted list right away, such as when the plugin is disabling.
+     */
+    public static void flushEvictions() {
+        evictions.finish();
+        stopEvictions();
+    }
+
+    /**
+     * @param nanos How long the eviction task may spend each tick
+     */
+    public static void setEvictionBudget(long nanos) {
+        evictionBudget = Math.max(1, nanos);
+    }
+
+    public static CommitBatch getEvictions() {
+        return evictions;
+    }
+
+    public void add(UndoList list) {
+        pending.add(list);
+        pendingBlocks += list.size();
+    }
+
+    private void finishCurrent() {
+        if (current != null && position >= blocks.length) {
+            // Blocks are already committed, this just cleans up the list
+            current.clear();
+            current.commit();
+            current = null;
+            blocks = null;
+        }
+    }
+
+    private boolean next() {
+        finishCurrent();
+        while (current == null) {
+            if (pending.isEmpty()) {
+                return false;
+            }
+            current = pending.poll();
+            Collection<BlockData> listBlocks = current.getBlockList();
+            blocks = listBlocks == null ? new BlockData[0] : listBlocks.toArray(new BlockData[listBlocks.size()]);
+            pendingBlocks -= Math.min(pendingBlocks, current.size());
+            UndoOrdering.sortByChunk(blocks, null);
+            position = 0;
+            finishCurrent();
+        }
+        return true;
+    }
+
+    @Override
+    public int process(int maxBlocks) {
+        int processedBlocks = 0;
+        while (processedBlocks < maxBlocks && next()) {
+            // Commit up to the end of the current chunk
+            long chunkKey = BlockKey.getChunkKey(blocks[position].getId());
+            int end = position;
+            int limit = Math.min(blocks.length, position + maxBlocks - processedBlocks);
+            while (end < limit && BlockKey.getChunkKey(blocks[end].getId()) == chunkKey) {
+                end++;
+            }
+            committed += UndoList.commit(current, blocks, position, end);
+            for (int i = position; i < end; i++) {
+                blocks[i] = null;
+            }
+            processedBlocks += end - position;
+            position = end;
+        }
+        finishCurrent();
+        return processedBlocks;
+    }
+
+    @Override
+    public void finish() {
+        while (next()) {
+            process(blocks.length - position);
+        }
+    }
+
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return current == null && pending.isEmpty();
+    }
+
+    public int size() {
+        return committed + remaining();
+    }
+
+    public int remaining() {
+        return pendingBlocks + (blocks == null ? 0 : blocks.length - position);
+    }
+
+    /**
+     * @return The number of lists waiting to be committed, including the current one
+     */
+    public int getListCount() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    /**
+     * @return The number of blocks committed so far
+     */
+    public int getCommitted() {
+        return committed;
+    }
+
+    @Override
+    public BatchPriority getPriority() {
+        return BatchPriority.BACKGROUND;
+    }
+
+    @Override
+    public String getName() {
+        return "Commit " + getListCount() + " lists (" + remaining() + " blocks)";
+    }
+}
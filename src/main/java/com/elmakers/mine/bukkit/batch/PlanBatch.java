@@ -0,0 +1,142 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.io.IOException;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.ConfigurationSection;
+
+import com.elmakers.mine.bukkit.api.magic.MageController;
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.BlockWritePipeline;
+import com.elmakers.mine.bukkit.block.PlacementPlan;
+import com.elmakers.mine.bukkit.block.UndoList;
+import com.elmakers.mine.bukkit.block.WorldIndex;
+
+/**
+ * Applies a PlacementPlan that has already been built, such as one resumed from
+ * a checkpoint.
+ *
+ * Changed blocks are recorded in an undo list, which is passed to the controller
+ * once the plan is done.
+ */
+public class PlanBatch implements CheckpointBatch, PrioritizedBatch {
+    protected final MageController controller;
+    protected final PlacementPlan plan;
+    protected final UndoList undoList;
+    protected final BlockWritePipeline writes = new BlockWritePipeline(false);
+    protected final BatchTimer timer = new BatchTimer();
+    protected boolean finished = false;
+    private int position = 0;
+    // Where the plan was saved from at the first checkpoint
+    private int checkpointPosition = 0;
+
+    public PlanBatch(MageController controller, PlacementPlan plan, UndoList undoList) {
+        this.controller = controller;
+        this.plan = plan;
+        this.undoList = undoList;
+        undoList.setBatch(this);
+    }
+
+    /**
+     * Resume a plan saved by saveCheckpoint, skipping the placements applied since.
+     */
+    public static PlanBatch resume(MageController controller, ConfigurationSection node, ConfigurationSection progress) throws IOException {
+        PlacementPlan plan = PlacementPlan.decodeString(node.getString("plan", ""));
+        UndoList undoList = new UndoList(null, node.getString("name", "Resumed"));
+        PlanBatch batch = new PlanBatch(controller, plan, undoList);
+        batch.position = Math.max(0, Math.min(progress.getInt("applied", 0), plan.size()));
+        return batch;
+    }
+
+    @Override
+    public int process(int maxBlocks) {
+        int processedBlocks = 0;
+        int planSize = plan.size();
+        World world = WorldIndex.getWorld(WorldIndex.getIndex(plan.getWorldName()));
+        if (world == null) {
+            // The world is gone, nothing left to place
+            position = planSize;
+        }
+        while (position < planSize && processedBlocks < maxBlocks) {
+            long blockId = plan.getBlockId(position);
+            Block block = world.getBlockAt(BlockKey.getX(blockId), BlockKey.getY(blockId), BlockKey.getZ(blockId));
+            if (writes.write(block, plan.getTarget(position))) {
+                undoList.add(block);
+            }
+            position++;
+            processedBlocks++;
+        }
+        writes.flush();
+        if (position >= planSize) {
+            finish();
+        }
+        return processedBlocks;
+    }
+
+    @Override
+    public void finish() {
+        if (!finished) {
+            finished = true;
+            writes.flush();
+            if (!undoList.isScheduled()) {
+                controller.update(undoList);
+            }
+            undoList.setBatch(null);
+        }
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
+    @Override
+    public String getCheckpointType() {
+        return "plan";
+    }
+
+    @Override
+    public void saveCheckpoint(ConfigurationSection node) {
+        try {
+            node.set("name", undoList.getName());
+            node.set("plan", plan.encodeString(position));
+            checkpointPosition = position;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to encode plan: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public void saveProgress(ConfigurationSection node) {
+        node.set("applied", position - checkpointPosition);
+    }
+
+    public int size() {
+        return plan.size();
+    }
+
+    public int remaining() {
+        return plan.size() - position;
+    }
+
+    @Override
+    public BatchPriority getPriority() {
+        return BatchPriority.BACKGROUND;
+    }
+
+    @Override
+    public String getName() {
+        return "Build " + undoList.getName() + " (" + position + "/" + plan.size() + ")";
+    }
+}
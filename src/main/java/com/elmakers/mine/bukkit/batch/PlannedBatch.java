@@ -0,0 +1,211 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.io.IOException;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.BoundingBox;
+import com.elmakers.mine.bukkit.block.ChunkSnapshots;
+import com.elmakers.mine.bukkit.block.PlacementPlan;
+import com.elmakers.mine.bukkit.spell.BrushSpell;
+
+/**
+ * A BrushBatch that decides what to place before placing anything.
+ *
+ * The batch runs in two phases. First, the chunks covering its area are
+ * snapshotted on the main thread, a few per tick, and the subclass builds a
+ * PlacementPlan from those snapshots on an async thread. Then the plan is applied
+ * on the main thread within the batch's time budget, doing nothing more than
+ * registering each block for undo and writing it.
+ *
+ * Plans are built against snapshots, so blocks may change before they are applied.
+ * Blocks that already match their target when applied are skipped.
+ *
+ * Once planned, the rest of the plan is saved at the first checkpoint, along with
+ * how much of it has been applied at each one after, and resumes as a PlanBatch.
+ */
+public abstract class PlannedBatch extends BrushBatch implements CheckpointBatch {
+    // Roughly how many blocks worth of time one chunk snapshot takes
+    private static final int SNAPSHOT_COST = 256;
+
+    private enum Phase { SNAPSHOT, PLANNING, APPLYING }
+
+    protected final World world;
+    protected final BoundingBox area;
+
+    private Phase phase = Phase.SNAPSHOT;
+    private final ChunkSnapshots snapshots;
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int chunksX;
+    private final int chunkCount;
+    private int snapshotIndex = 0;
+
+    private volatile PlacementPlan plan;
+    private volatile boolean cancelled = false;
+    private int position = 0;
+    private int checkpointPosition = 0;
+    private int placed = 0;
+
+    /**
+     * @param spell The spell casting this batch
+     * @param world The world to build in
+     * @param area The area the plan will read from, max exclusive
+     */
+    public PlannedBatch(BrushSpell spell, World world, BoundingBox area) {
+        super(spell);
+        this.world = world;
+        this.area = area;
+        this.snapshots = new ChunkSnapshots(world);
+        minChunkX = area.getMin().getBlockX() >> 4;
+        minChunkZ = area.getMin().getBlockZ() >> 4;
+        chunksX = ((area.getMax().getBlockX() - 1) >> 4) - minChunkX + 1;
+        int chunksZ = ((area.getMax().getBlockZ() - 1) >> 4) - minChunkZ + 1;
+        chunkCount = Math.max(0, chunksX) * Math.max(0, chunksZ);
+    }
+
+    /**
+     * Build the placement plan.
+     *
+     * This runs off the main thread, so must only read the world through the
+     * snapshots, and must not touch the undo list, the brush, or anything else
+     * that is not thread safe.
+     *
+     * @param plan The builder to add placements to
+     * @param snapshots Snapshots of every chunk the area touches
+     */
+    protected abstract void plan(PlacementPlan.Builder plan, ChunkSnapshots snapshots);
+
+    @Override
+    public int process(int maxBlocks) {
+        if (finished) return 0;
+        switch (phase) {
+            case SNAPSHOT:
+                return snapshot(maxBlocks);
+            case PLANNING:
+                if (plan == null) return 0;
+                phase = Phase.APPLYING;
+                // The plan is ready, start applying it right away
+            case APPLYING:
+                return apply(maxBlocks);
+        }
+        return 0;
+    }
+
+    private int snapshot(int maxBlocks) {
+        int maxChunks = Math.max(1, maxBlocks / SNAPSHOT_COST);
+        int processed = 0;
+        while (snapshotIndex < chunkCount && processed < maxChunks) {
+            snapshots.add(minChunkX + snapshotIndex % chunksX, minChunkZ + snapshotIndex / chunksX);
+            snapshotIndex++;
+            processed++;
+        }
+        if (snapshotIndex >= chunkCount) {
+            startPlanning();
+        }
+        return processed * SNAPSHOT_COST;
+    }
+
+    private void startPlanning() {
+        phase = Phase.PLANNING;
+        // Bukkit objects are only read on the main thread
+        final String worldName = world.getName();
+        Runnable planner = new Runnable() {
+            @Override
+            public void run() {
+                PlacementPlan.Builder builder = new PlacementPlan.Builder(worldName);
+                try {
+                    if (!cancelled) {
+                        plan(builder, snapshots);
+                    }
+                } catch (Exception ex) {
+                    Bukkit.getLogger().warning("Error planning " + getName() + ": " + ex.getMessage());
+                }
+                plan = builder.build();
+            }
+        };
+        Plugin plugin = controller.getPlugin();
+        if (plugin == null || !plugin.isEnabled()) {
+            planner.run();
+        } else {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, planner);
+        }
+    }
+
+    private int apply(int maxBlocks) {
+        int processedBlocks = 0;
+        int planSize = plan.size();
+        while (position < planSize && processedBlocks < maxBlocks) {
+            long blockId = plan.getBlockId(position);
+            Block block = world.getBlockAt(BlockKey.getX(blockId), BlockKey.getY(blockId), BlockKey.getZ(blockId));
+            if (writes.write(block, plan.getTarget(position))) {
+                registerForUndo(block);
+                placed++;
+            }
+            position++;
+            processedBlocks++;
+        }
+        flush();
+        if (position >= planSize) {
+            finish();
+        }
+        return processedBlocks;
+    }
+
+    @Override
+    public void finish() {
+        if (!finished) {
+            // Anything not planned yet is dropped
+            cancelled = true;
+            super.finish();
+        }
+    }
+
+    @Override
+    public String getCheckpointType() {
+        // Nothing is saved until there is a plan, the spell would have to be cast again
+        return plan == null || finished ? null : "plan";
+    }
+
+    @Override
+    public void saveCheckpoint(ConfigurationSection node) {
+        try {
+            node.set("name", undoList.getName());
+            node.set("plan", plan.encodeString(position));
+            checkpointPosition = position;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to encode plan: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public void saveProgress(ConfigurationSection node) {
+        node.set("applied", position - checkpointPosition);
+    }
+
+    public boolean isPlanned() {
+        return plan != null;
+    }
+
+    /**
+     * @return The number of blocks changed so far
+     */
+    public int getPlaced() {
+        return placed;
+    }
+
+    public int size() {
+        PlacementPlan currentPlan = plan;
+        return currentPlan == null ? area.getSizeX() * area.getSizeY() * area.getSizeZ() : currentPlan.size();
+    }
+
+    public int remaining() {
+        PlacementPlan currentPlan = plan;
+        return currentPlan == null ? size() : currentPlan.size() - position;
+    }
+}
@@ -0,0 +1,12 @@
+package com.elmakers.mine.bukkit.batch;
+
+import com.elmakers.mine.bukkit.api.batch.Batch;
+
+/**
+ * A Batch that declares its priority to the BatchScheduler.
+ *
+ * Batches that don't implement this run as BatchPriority.NORMAL.
+ */
+public interface PrioritizedBatch extends Batch {
+    BatchPriority getPriority();
+}
@@ -0,0 +1,158 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.util.Arrays;
+
+import org.bukkit.World;
+
+import com.elmakers.mine.bukkit.api.block.BlockData;
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.MaterialAndData;
+import com.elmakers.mine.bukkit.block.UndoList;
+import com.elmakers.mine.bukkit.block.WorldIndex;
+import com.elmakers.mine.bukkit.utility.LongHashSet;
+import com.elmakers.mine.bukkit.utility.LongIntHashMap;
+
+/**
+ * Drops blocks from an UndoList that no longer differ from the world, a few at a time.
+ *
+ * Blocks are checked a chunk at a time. Blocks in chunks that are not loaded are
+ * kept and skipped, rather than loading the chunk to check them. Blocks that were
+ * undone or committed since the batch started are skipped as well.
+ *
+ * The list is only changed when the batch finishes, in a single pass.
+ */
+public class PruneBatch implements TimedBatch, PrioritizedBatch {
+    protected final UndoList undoList;
+    protected final BatchTimer timer = new BatchTimer();
+    protected boolean finished = false;
+
+    private final BlockData[] blocks;
+    private int position = 0;
+    private int unloaded = 0;
+    private final LongHashSet unchanged = new LongHashSet();
+    private int pruned = 0;
+
+    public PruneBatch(UndoList undoList) {
+        this.undoList = undoList;
+
+        // Put blocks in chunk order, so each chunk is checked in one go
+        BlockData[] listBlocks = undoList.getBlockList() == null ? new BlockData[0] : undoList.getBlockList().toArray(new BlockData[0]);
+        long[] order = new long[listBlocks.length];
+        LongIntHashMap indices = new LongIntHashMap(listBlocks.length);
+        for (int i = 0; i < listBlocks.length; i++) {
+            long blockId = listBlocks[i].getId();
+            order[i] = BlockKey.toChunkOrder(blockId);
+            indices.put(blockId, i);
+        }
+        Arrays.sort(order);
+        blocks = new BlockData[order.length];
+        for (int i = 0; i < order.length; i++) {
+            blocks[i] = listBlocks[indices.get(BlockKey.fromChunkOrder(order[i]), 0)];
+        }
+    }
+
+    @Override
+    public int process(int maxBlocks) {
+        int processedBlocks = 0;
+        World world = null;
+        int worldIndex = -1;
+        while (position < blocks.length && processedBlocks < maxBlocks) {
+            BlockData block = blocks[position];
+            long blockId = block.getId();
+            if (BlockKey.getWorldIndex(blockId) != worldIndex) {
+                worldIndex = BlockKey.getWorldIndex(blockId);
+                world = WorldIndex.getWorld(worldIndex);
+            }
+
+            // Skip the rest of a chunk that isn't loaded
+            int x = BlockKey.getX(blockId);
+            int z = BlockKey.getZ(blockId);
+            if (world == null || !world.isChunkLoaded(x >> 4, z >> 4)) {
+                long chunkKey = BlockKey.getChunkKey(blockId);
+                while (position < blocks.length && BlockKey.getChunkKey(blocks[position].getId()) == chunkKey) {
+                    blocks[position++] = null;
+                    unloaded++;
+                    processedBlocks++;
+                }
+                continue;
+            }
+
+            blocks[position++] = null;
+            processedBlocks++;
+
+            // Skip anything undone or committed since this batch was created
+            if (block.getUndoList() != undoList || !undoList.containsKey(blockId)) continue;
+
+            boolean different;
+            if (block instanceof MaterialAndData) {
+                different = ((MaterialAndData)block).isDifferent(world.getBlockAt(x, BlockKey.getY(blockId), z));
+            } else {
+                different = block.isDifferent();
+            }
+            if (!different) {
+                unchanged.add(blockId);
+            }
+        }
+        if (position >= blocks.length) {
+            finish();
+        }
+        return processedBlocks;
+    }
+
+    @Override
+    public void finish() {
+        if (!finished) {
+            finished = true;
+            if (!unchanged.isEmpty()) {
+                pruned = undoList.prune(unchanged);
+            }
+        }
+    }
+
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int size() {
+        return blocks.length;
+    }
+
+    public int remaining() {
+        return blocks.length - position;
+    }
+
+    /**
+     * @return The number of blocks skipped because their chunk was not loaded
+     */
+    public int getUnloaded() {
+        return unloaded;
+    }
+
+    /**
+     * @return The number of blocks dropped from the list, once finished
+     */
+    public int getPruned() {
+        return pruned;
+    }
+
+    @Override
+    public BatchPriority getPriority() {
+        return BatchPriority.BACKGROUND;
+    }
+
+    @Override
+    public String getName() {
+        return "Prune " + undoList.getName() + " (" + position + "/" + blocks.length + ")";
+    }
+}
@@ -0,0 +1,266 @@
+package com.elmakers.mine.bukkit.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Material;
+
+import com.elmakers.mine.bukkit.api.block.BlockData;
+import com.elmakers.mine.bukkit.api.magic.MageController;
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.BoundingBox;
+import com.elmakers.mine.bukkit.block.MaterialSet;
+import com.elmakers.mine.bukkit.block.UndoList;
+import com.elmakers.mine.bukkit.block.UndoListIndex;
+import com.elmakers.mine.bukkit.utility.LongHashSet;
+import com.elmakers.mine.bukkit.utility.LongIntHashMap;
+
+/**
+ * Rolls back every change made inside an area, across any number of UndoLists,
+ * as one batch.
+ *
+ * Only the blocks inside the area are undone, the rest of each list is left alone.
+ * Blocks are undone a chunk at a time, with the newest change at each position first,
+ * so each undo restores the state below it and the state chains are relinked by the
+ * normal UndoList undo logic. Attachable blocks are undone last.
+ *
+ * Undone blocks are dropped from their lists when the batch finishes, and lists left
+ * empty are removed from their undo queues.
+ */
+public class RollbackBatch implements TimedBatch, PrioritizedBatch {
+    private static final String[] ATTACHABLE_SETS = {"attachable", "attachable_wall", "attachable_double", "delayed"};
+
+    protected final MageController controller;
+    protected final BatchTimer timer = new BatchTimer();
+    protected boolean finished = false;
+    protected boolean applyPhysics = false;
+
+    private final BlockData[] blocks;
+    private final UndoList[] owners;
+    private int position = 0;
+    private int undone = 0;
+    private int skipped = 0;
+    private final Map<UndoList, LongHashSet> rolledBack = new IdentityHashMap<UndoList, LongHashSet>();
+
+    /**
+     * Create a rollback of an area across every live UndoList.
+     *
+     * @param controller The controller, used for attachable material sets and updates
+     * @param worldName The world to roll back in
+     * @param area The area to roll back
+     * @param since Only lists modified at or after this time are rolled back, or 0 for all
+     * @return A new batch, which must be added to a Mage to run
+     */
+    public static RollbackBatch create(MageController controller, String worldName, BoundingBox area, long since) {
+        return new RollbackBatch(controller, UndoListIndex.getUndoLists(worldName, area), area, since);
+    }
+
+    public RollbackBatch(MageController controller, Collection<UndoList> lists, BoundingBox area, long since) {
+        this.controller = controller;
+
+        List<BlockData> selectedBlocks = new ArrayList<BlockData>();
+        List<UndoList> selectedOwners = new ArrayList<UndoList>();
+        for (UndoList list : lists) {
+            if (since > 0 && list.getModifiedTime() < since) continue;
+            int count = list.getBlocksInArea(area, selectedBlocks);
+            for (int i = 0; i < count; i++) {
+                selectedOwners.add(list);
+            }
+        }
+        blocks = selectedBlocks.toArray(new BlockData[selectedBlocks.size()]);
+        owners = selectedOwners.toArray(new UndoList[selectedOwners.size()]);
+        sort();
+    }
+
+    private void sort() {
+        final Set<Material> attachables = new MaterialSet();
+        for (String setKey : ATTACHABLE_SETS) {
+            Set<Material> materials = controller.getMaterialSet(setKey);
+            if (materials != null) {
+                attachables.addAll(materials);
+            }
+        }
+
+        // Chunks are visited in the order they are first seen
+        final LongIntHashMap chunkOrder = new LongIntHashMap();
+        for (BlockData block : blocks) {
+            long chunkId = BlockKey.getChunkKey(block.getId());
+            if (!chunkOrder.containsKey(chunkId)) {
+                chunkOrder.put(chunkId, chunkOrder.size());
+            }
+        }
+
+        Integer[] order = new Integer[blocks.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                BlockData block1 = blocks[index1];
+                BlockData block2 = blocks[index2];
+                boolean attachable1 = attachables.contains(block1.getMaterial());
+                boolean attachable2 = attachables.contains(block2.getMaterial());
+                if (attachable1 != attachable2) {
+                    return attachable1 ? 1 : -1;
+                }
+                long id1 = block1.getId();
+                long id2 = block2.getId();
+                int chunk1 = chunkOrder.get(BlockKey.getChunkKey(id1), 0);
+                int chunk2 = chunkOrder.get(BlockKey.getChunkKey(id2), 0);
+                if (chunk1 != chunk2) {
+                    return chunk1 - chunk2;
+                }
+                if (id1 != id2) {
+                    int y1 = BlockKey.getY(id1);
+                    int y2 = BlockKey.getY(id2);
+                    if (y1 != y2) {
+                        return y1 - y2;
+                    }
+                    return id1 < id2 ? -1 : 1;
+                }
+                // Newest change at a position goes first
+                long sequence1 = owners[index1].getSequence();
+                long sequence2 = owners[index2].getSequence();
+                return sequence1 > sequence2 ? -1 : (sequence1 == sequence2 ? 0 : 1);
+            }
+        });
+
+        BlockData[] sortedBlocks = new BlockData[blocks.length];
+        UndoList[] sortedOwners = new UndoList[owners.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedBlocks[i] = blocks[order[i]];
+            sortedOwners[i] = owners[order[i]];
+        }
+        System.arraycopy(sortedBlocks, 0, blocks, 0, blocks.length);
+        System.arraycopy(sortedOwners, 0, owners, 0, owners.length);
+    }
+
+    @Override
+    public int process(int maxBlocks) {
+        int processedBlocks = 0;
+        while (position < blocks.length && processedBlocks < maxBlocks) {
+            BlockData block = blocks[position];
+            UndoList owner = owners[position];
+
+            // Skip anything committed or undone since this batch was created
+            if (block.getUndoList() != owner || !owner.containsKey(block.getId())) {
+                blocks[position] = null;
+                owners[position] = null;
+                position++;
+                skipped++;
+                continue;
+            }
+
+            // This will return false if the chunk needs loading, try again next time
+            if (!owner.undo(block, applyPhysics)) {
+                break;
+            }
+            LongHashSet ids = rolledBack.get(owner);
+            if (ids == null) {
+                ids = new LongHashSet();
+                rolledBack.put(owner, ids);
+            }
+            ids.add(block.getId());
+            blocks[position] = null;
+            owners[position] = null;
+            position++;
+            undone++;
+            processedBlocks++;
+        }
+        if (position >= blocks.length) {
+            finish();
+        }
+        return processedBlocks;
+    }
+
+    @Override
+    public void finish() {
+        if (!finished) {
+            finished = true;
+            for (Map.Entry<UndoList, LongHashSet> entry : rolledBack.entrySet()) {
+                UndoList list = entry.getKey();
+                list.forget(entry.getValue());
+                if (list.isEmpty()) {
+                    if (list.isScheduled()) {
+                        controller.cancelScheduledUndo(list);
+                    }
+                    list.unlink();
+                }
+                controller.update(list);
+            }
+            rolledBack.clear();
+        }
+    }
+
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
+    public void setApplyPhysics(boolean applyPhysics) {
+        this.applyPhysics = applyPhysics;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int size() {
+        return blocks.length;
+    }
+
+    public int remaining() {
+        return blocks.length - position;
+    }
+
+    /**
+     * @return The fraction of this rollback that is done, from 0 to 1
+     */
+    public double getProgress() {
+        return blocks.length == 0 ? 1 : (double)position / blocks.length;
+    }
+
+    /**
+     * @return The number of blocks that were rolled back so far
+     */
+    public int getUndone() {
+        return undone;
+    }
+
+    /**
+     * @return The number of blocks skipped because their list changed since this batch was created
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return The number of UndoLists touched so far
+     */
+    public int getListCount() {
+        return rolledBack.size();
+    }
+
+    @Override
+    public BatchPriority getPriority() {
+        return BatchPriority.BACKGROUND;
+    }
+
+    @Override
+    public String getName() {
+        return "Rollback (" + position + "/" + blocks.length + ")";
+    }
+}
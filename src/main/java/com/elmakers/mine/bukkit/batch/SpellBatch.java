@@ -4,7 +4,7 @@ import com.elmakers.mine.bukkit.api.action.CastContext;
 import com.elmakers.mine.bukkit.api.spell.Spell;
 import com.elmakers.mine.bukkit.spell.UndoableSpell;
 
-public abstract class SpellBatch extends UndoableBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatch {
+public abstract class SpellBatch extends UndoableBatch implements com.elmakers.mine.bukkit.api.batch.SpellBatch, PrioritizedBatch {
     protected final UndoableSpell spell;
     protected final CastContext context;
 
@@ -28,6 +28,11 @@ public abstract class SpellBatch extends UndoableBatch implements com.elmakers.m
         return spell;
     }
 
+    @Override
+    public BatchPriority getPriority() {
+        return BatchPriority.INTERACTIVE;
+    }
+
     @Override
     public String getName() {
         if (spell == null) return "Unknown";
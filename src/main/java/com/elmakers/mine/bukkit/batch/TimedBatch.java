@@ -0,0 +1,18 @@
+package com.elmakers.mine.bukkit.batch;
+
+import com.elmakers.mine.bukkit.api.batch.Batch;
+
+/**
+ * A Batch that can be run with a time allowance rather than a unit count.
+ */
+public interface TimedBatch extends Batch {
+    /**
+     * Process as much of this batch as should fit in the given time.
+     *
+     * @param maxNanos The time allowance, in nanoseconds
+     * @return The number of units processed
+     */
+    int processTime(long maxNanos);
+
+    BatchTimer getTimer();
+}
@@ -2,15 +2,20 @@ package com.elmakers.mine.bukkit.batch;
 
 import com.elmakers.mine.bukkit.api.action.CastContext;
 import com.elmakers.mine.bukkit.api.block.BlockData;
-import com.elmakers.mine.bukkit.api.magic.Mage;
 import com.elmakers.mine.bukkit.api.magic.MageController;
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.BlockWritePipeline;
+import com.elmakers.mine.bukkit.block.MaterialSet;
 import com.elmakers.mine.bukkit.block.UndoList;
+import com.elmakers.mine.bukkit.block.WorldIndex;
+import com.elmakers.mine.bukkit.utility.CompatibilityUtils;
 import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
 
-import java.util.HashSet;
 import java.util.Set;
 
-public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch {
+public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch, CheckpointBatch, PrioritizedBatch {
     protected final MageController controller;
     protected boolean finished = false;
     protected boolean applyPhysics = false;
@@ -18,16 +23,28 @@ public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch {
     protected int listSize;
     protected int listProcessed;
     protected double partialWork = 0;
+    protected final BatchTimer timer = new BatchTimer();
+    protected final BlockWritePipeline writes;
+
+    // How many chunks ahead of the current one to request when undoing by chunk
+    protected int prefetchChunks = 4;
+    protected long[] undoChunks;
+    protected int chunkIndex = 0;
 
     private final Set<Material> attachables;
 
     public UndoBatch(UndoList blockList) {
-        Mage mage = blockList.getOwner();
-        controller = mage.getController();
+        this(blockList.getOwner().getController(), blockList);
+    }
+
+    public UndoBatch(MageController controller, UndoList blockList) {
+        this.controller = controller;
 
         undoList = blockList;
         this.applyPhysics = blockList.getApplyPhysics();
-        this.attachables = new HashSet<Material>();
+        this.writes = new BlockWritePipeline(applyPhysics);
+        writes.setDeferPhysics(blockList.isDeferringPhysics());
+        this.attachables = new MaterialSet();
 
         CastContext context = undoList.getContext();
         if (context != null) {
@@ -52,8 +69,13 @@ public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch {
         }
 
         // Sort so attachable items don't break
-        undoList.sort(attachables);
-        listSize = undoList.size();
+        if (undoList.isUndoByChunk()) {
+            undoList.sortByChunk(attachables);
+            undoChunks = undoList.getUndoChunks();
+        } else {
+            undoList.sort(attachables);
+        }
+        listSize = undoList.size() + undoList.getVolumeSize();
     }
 
     public int size() {
@@ -61,7 +83,7 @@ public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch {
     }
 
     public int remaining() {
-        return undoList == null ? 0 : undoList.size();
+        return undoList == null ? 0 : undoList.size() + undoList.getVolumeSize();
     }
 
     public int process(int maxBlocks) {
@@ -76,24 +98,146 @@ public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch {
                 return 0;
             }
         }
+        if (undoChunks != null) {
+            prefetch();
+        }
         while (undoList.size() > 0 && processedBlocks < maxBlocks) {
-            BlockData undone = undoList.undoNext(applyPhysics);
+            // Wait for the next chunk to finish loading rather than loading it here
+            if (undoChunks != null && !isNextChunkLoaded()) {
+                break;
+            }
+            BlockData undone = undoList.undoNext(applyPhysics, writes);
             if (undone == null) {
                 break;
             }
             processedBlocks++;
             listProcessed++;
         }
-        if (undoList.size() == 0) {
+        writes.flush();
+        // Whole volumes are restored once all individual blocks are done
+        if (undoList.size() == 0 && undoList.hasVolumes() && processedBlocks < maxBlocks) {
+            int undone = undoList.undoVolumes(maxBlocks - processedBlocks, applyPhysics);
+            processedBlocks += undone;
+            listProcessed += undone;
+        }
+        if (undoList.size() == 0 && !undoList.hasVolumes()) {
             finish();
         }
 
         return processedBlocks;
     }
 
+    protected boolean isNextChunkLoaded() {
+        BlockData next = undoList.peekNextBlock();
+        if (next == null) return true;
+        long chunkId = BlockKey.getChunkKey(next.getId());
+        World world = WorldIndex.getWorld(BlockKey.getWorldIndex(chunkId));
+        return world == null || world.isChunkLoaded(BlockKey.getChunkX(chunkId), BlockKey.getChunkZ(chunkId));
+    }
+
+    /**
+     * Request the chunks coming up next in the undo order.
+     *
+     * If the server can load chunks asynchronously, every chunk in the prefetch window is
+     * requested. Otherwise at most one chunk is loaded per tick, ahead of where it is needed.
+     */
+    protected void prefetch() {
+        BlockData next = undoList.peekNextBlock();
+        if (next == null) return;
+
+        // Catch up to the chunk of the next block to be undone
+        long currentChunk = BlockKey.getChunkKey(next.getId());
+        for (int i = chunkIndex; i < undoChunks.length; i++) {
+            if (undoChunks[i] == currentChunk) {
+                chunkIndex = i;
+                break;
+            }
+        }
+
+        boolean async = CompatibilityUtils.canLoadChunksAsync();
+        int lastChunk = Math.min(undoChunks.length, chunkIndex + 1 + prefetchChunks);
+        for (int i = chunkIndex; i < lastChunk; i++) {
+            long chunkId = undoChunks[i];
+            World world = WorldIndex.getWorld(BlockKey.getWorldIndex(chunkId));
+            if (world == null) continue;
+            int chunkX = BlockKey.getChunkX(chunkId);
+            int chunkZ = BlockKey.getChunkZ(chunkId);
+            if (world.isChunkLoaded(chunkX, chunkZ)) continue;
+            if (!async || !CompatibilityUtils.loadChunkAsync(world, chunkX, chunkZ)) {
+                world.loadChunk(chunkX, chunkZ);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Resume an undo saved by saveCheckpoint.
+     *
+     * Blocks are saved in the order they are undone, so the ones undone since are
+     * those ahead of the next block saved by saveProgress. The blocks left to undo
+     * are registered again, then undone as usual. Volumes are restored from the start.
+     */
+    public static UndoBatch resume(MageController controller, ConfigurationSection node, ConfigurationSection progress) {
+        UndoList list = new UndoList(null);
+        ConfigurationSection listNode = node.getConfigurationSection("list");
+        if (listNode != null) {
+            list.load(listNode);
+        }
+        boolean blocksDone = progress.getBoolean("blocks_done", false);
+        long nextBlock = progress.getLong("next_block", 0);
+        if (blocksDone || (progress.contains("next_block") && list.containsKey(nextBlock))) {
+            BlockData next = list.peekNextBlock();
+            while (next != null && (blocksDone || next.getId() != nextBlock)) {
+                list.remove(next);
+                next = list.peekNextBlock();
+            }
+        }
+        list.setUndoByChunk(node.getBoolean("undo_by_chunk", false));
+        list.setDeferPhysics(node.getBoolean("defer_physics", false));
+        return new UndoBatch(controller, list);
+    }
+
+    @Override
+    public String getCheckpointType() {
+        return "undo";
+    }
+
+    @Override
+    public void saveCheckpoint(ConfigurationSection node) {
+        // Undone blocks have already been dropped from the list, the rest are in undo order
+        undoList.save(node.createSection("list"));
+        if (undoList.isUndoByChunk()) node.set("undo_by_chunk", true);
+        if (undoList.isDeferringPhysics()) node.set("defer_physics", true);
+    }
+
+    @Override
+    public void saveProgress(ConfigurationSection node) {
+        BlockData next = undoList.peekNextBlock();
+        if (next == null) {
+            node.set("blocks_done", true);
+        } else {
+            node.set("next_block", next.getId());
+        }
+    }
+
+    public void setPrefetchChunks(int prefetchChunks) {
+        this.prefetchChunks = prefetchChunks;
+    }
+
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
     public void finish() {
         if (!finished) {
             finished = true;
+            writes.updateDeferred();
             undoList.unregisterAttached();
             undoList.undoEntityEffects();
             if (!undoList.isScheduled()) {
@@ -111,6 +255,12 @@ public class UndoBatch implements com.elmakers.mine.bukkit.api.batch.UndoBatch {
         return finished;
     }
 
+    @Override
+    public BatchPriority getPriority() {
+        // Scheduled undos are expiring, nobody is waiting on them
+        return undoList.isScheduled() ? BatchPriority.NORMAL : BatchPriority.UNDO;
+    }
+
     @Override
     public String getName() {
         return "Undo " + undoList.getName();
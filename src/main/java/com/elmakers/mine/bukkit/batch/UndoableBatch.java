@@ -3,16 +3,16 @@ package com.elmakers.mine.bukkit.batch;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
 
-import com.elmakers.mine.bukkit.api.batch.Batch;
 import com.elmakers.mine.bukkit.api.magic.Mage;
 import com.elmakers.mine.bukkit.api.magic.MageController;
 import com.elmakers.mine.bukkit.block.UndoList;
 
-public abstract class UndoableBatch implements Batch {
+public abstract class UndoableBatch implements TimedBatch {
     protected final MageController controller;
     protected final UndoList undoList;
     protected final Mage mage;
     protected boolean finished = false;
+    protected final BatchTimer timer = new BatchTimer();
 
     public UndoableBatch(Mage mage, UndoList undoList) {
         this.controller = mage.getController();
@@ -30,9 +30,22 @@ public abstract class UndoableBatch implements Batch {
         undoList.add(entity);
     }
 
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
     public void finish() {
         if (!finished) {
             finished = true;
+            if (undoList.isDeferringAttachables()) {
+                undoList.scanAttachables();
+            }
             if (!undoList.isScheduled()) {
                 controller.update(undoList);
             }
@@ -3,15 +3,27 @@ package com.elmakers.mine.bukkit.batch;
 import org.bukkit.block.Block;
 import org.bukkit.util.BlockVector;
 
-import com.elmakers.mine.bukkit.api.batch.Batch;
 import com.elmakers.mine.bukkit.api.block.BlockData;
 import com.elmakers.mine.bukkit.api.magic.MageController;
+import com.elmakers.mine.bukkit.block.BlockKey;
+import com.elmakers.mine.bukkit.block.BlockWritePipeline;
+import com.elmakers.mine.bukkit.utility.LongHashSet;
 
-public abstract class VolumeBatch implements Batch {
+/**
+ * A batch that changes blocks in one world, tracking the volume it has changed.
+ *
+ * With deferred physics, subclasses write blocks without physics, and every block
+ * passed to updateBlock gets physics and lighting in a single chunk-ordered pass
+ * when the batch finishes.
+ */
+public abstract class VolumeBatch implements TimedBatch {
     protected final MageController controller;
     private String worldName;
+    protected boolean deferPhysics = false;
+    private LongHashSet changed;
 
     protected boolean finished = false;
+    protected final BatchTimer timer = new BatchTimer();
 
     private Integer minx = null;
     private Integer miny = null;
@@ -30,6 +42,10 @@ public abstract class VolumeBatch implements Batch {
         updateBlock(data.getWorldName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
 
+    protected void updateBlock(BlockKey blockKey) {
+        updateBlock(blockKey.getWorldName(), blockKey.getX(), blockKey.getY(), blockKey.getZ());
+    }
+
     protected void updateBlock(Block block) {
         updateBlock(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
     }
@@ -39,6 +55,10 @@ public abstract class VolumeBatch implements Batch {
             return;
         }
         if (this.worldName == null) this.worldName = worldName;
+        if (deferPhysics) {
+            if (changed == null) changed = new LongHashSet();
+            changed.add(BlockKey.toKey(worldName, x, y, z));
+        }
         if (minx == null) {
             minx = x;
             miny = y;
@@ -48,16 +68,45 @@ public abstract class VolumeBatch implements Batch {
             maxz = z;
         } else {
             minx = Math.min(x, minx);
-            miny = Math.min(z, miny);
+            miny = Math.min(y, miny);
             minz = Math.min(z, minz);
             maxx = Math.max(x, maxx);
-            maxy = Math.max(z, maxy);
+            maxy = Math.max(y, maxy);
             maxz = Math.max(z, maxz);
         }
     }
 
+    @Override
+    public int processTime(long maxNanos) {
+        return timer.process(this, maxNanos);
+    }
+
+    @Override
+    public BatchTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Set whether physics is left until the batch finishes.
+     *
+     * Subclasses should check isDeferringPhysics and write blocks without physics.
+     *
+     * @param deferPhysics Whether to defer physics to a single pass at the end
+     */
+    public void setDeferPhysics(boolean deferPhysics) {
+        this.deferPhysics = deferPhysics;
+    }
+
+    public boolean isDeferringPhysics() {
+        return deferPhysics;
+    }
+
     public void finish() {
         if (!finished) {
+            if (changed != null) {
+                BlockWritePipeline.updatePhysics(changed.toArray());
+                changed = null;
+            }
             if (worldName != null && minx != null && miny != null && minz != null && maxx !=null && maxy != null && maxz != null) {
                 controller.updateVolume(worldName, minx, miny, minz, maxx, maxy, maxz);
             }
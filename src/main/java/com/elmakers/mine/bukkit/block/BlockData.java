@@ -23,8 +23,8 @@ import java.util.Set;
  * This also stores the block state using the MaterialAndData structure as a base, and can be
  * used to restore a previously stored state.
  * 
- * In addition, BlockData instances can be linked to each other for layered undo queues that work
- * even when undone out of order.
+ * In addition, BlockData instances at the same position can be stacked for layered undo queues
+ * that work even when undone out of order. See BlockStateStack.
  * 
  */
 public class BlockData extends MaterialAndData implements com.elmakers.mine.bukkit.api.block.BlockData
@@ -32,9 +32,13 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
     public static final BlockFace[] FACES = new BlockFace[] { BlockFace.WEST, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.UP, BlockFace.DOWN };
     public static final BlockFace[] SIDES = new BlockFace[] { BlockFace.WEST, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST };
 
-    // Transient
-    protected com.elmakers.mine.bukkit.api.block.BlockData	nextState;
-    protected com.elmakers.mine.bukkit.api.block.BlockData	priorState;
+    // Rough heap cost of one undo record, including its share of the registries
+    public static final int ESTIMATED_MEMORY = 200;
+
+    // Transient, set by BlockStateStack
+    protected BlockStateStack   stack;
+    // Set when a later record at this position was committed, undoing this does nothing
+    protected boolean           committed = false;
 
     // Persistent
     protected BlockVector  location;
@@ -43,22 +47,18 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
     // Used for UndoList lookups
     protected WeakReference<UndoList> undoList = null;
 
+    // Cached BlockKey, cleared when the position changes
+    private long blockId;
+    private boolean hasBlockId = false;
+
     public static long getBlockId(Block block)
     {
-        return getBlockId(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+        return BlockKey.toKey(block);
     }
 
     public static long getBlockId(String world, int x, int y, int z)
     {
-        // Long is 63 bits
-        // 15 sets of F's (4-bits)
-        // world gets 4 bits
-        // y gets 8 bits
-        // and x and z get 24 bits each
-        return ((world.hashCode() & 0xF) << 56)
-            | (((long)x & 0xFFFFFF) << 32)
-            | (((long)z & 0xFFFFFF) << 8)
-            | ((long)y & 0xFF);
+        return BlockKey.toKey(world, x, y, z);
     }
 
     @Override
@@ -78,7 +78,17 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
 
     public long getId()
     {
-        return getBlockId(worldName, location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        if (!hasBlockId)
+        {
+            blockId = getBlockId(worldName, location.getBlockX(), location.getBlockY(), location.getBlockZ());
+            hasBlockId = true;
+        }
+        return blockId;
+    }
+
+    public BlockKey getBlockKey()
+    {
+        return new BlockKey(getId());
     }
 
     public static BlockFace getReverseFace(BlockFace blockFace)
@@ -159,21 +169,19 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
     public void setPosition(BlockVector location)
     {
         this.location = location;
+        hasBlockId = false;
     }
 
     public void unlink()
     {
-        if (priorState != null) {
-            priorState.setNextState(nextState);
-        }
+        if (stack == null) return;
+
+        // Pass state up the stack
+        BlockData nextState = stack.above(this);
         if (nextState != null) {
-            // Pass state up the chain
             nextState.updateFrom(this);
-            nextState.setPriorState(priorState);
         }
-
-        priorState = null;
-        nextState = null;
+        stack.remove(this);
     }
 
     @Override
@@ -185,6 +193,27 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
     @Override
     public boolean undo(boolean applyPhysics)
     {
+        return undo(applyPhysics, null);
+    }
+
+    /**
+     * Undo this change, leaving the block write to a BlockWritePipeline.
+     *
+     * @param writes The pipeline to submit the block write to
+     * @return false if the block's chunk is not loaded yet
+     */
+    public boolean undo(BlockWritePipeline writes)
+    {
+        return undo(false, writes);
+    }
+
+    protected boolean undo(boolean applyPhysics, BlockWritePipeline writes)
+    {
+        if (committed)
+        {
+            return true;
+        }
+
         Block block = getBlock();
         if (block == null)
         {
@@ -200,33 +229,37 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
 
         // Don't undo if not the top of the stack
         // Otherwise, state will be pushed up in unlink
-        if (nextState == null && isDifferent(block))
+        if (getNextState() == null)
         {
-            modify(block, applyPhysics);
+            if (writes != null)
+            {
+                writes.write(block, this);
+            }
+            else if (isDifferent(block))
+            {
+                modify(block, applyPhysics);
+            }
         }
         unlink();
 
         return true;
     }
 
+    /**
+     * Make this change permanent.
+     *
+     * Every older record at this position is committed along with it, since there
+     * is no longer anything for them to restore to. They stay in their UndoLists, but
+     * undoing them does nothing. Newer records are left alone, and will still restore
+     * the state this change left behind.
+     */
     @Override
     public void commit()
     {
-        if (nextState != null) {
-            nextState.setPriorState(null);
-            nextState.updateFrom(getBlock());
-            nextState = null;
-        }
-
-        if (priorState != null) {
-            // Very important for recursion!
-            priorState.setNextState(null);
-
-            // Cascade the commit downward, unlinking everything,
-            // in case other BlockLists contain these records
-            priorState.updateFrom(getBlock());
-            priorState.commit();
-            priorState = null;
+        if (stack == null) return;
+        stack.removeBelow(this, true);
+        if (stack != null) {
+            stack.remove(this);
         }
     }
 
@@ -258,22 +291,48 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
 
     @Override
     public com.elmakers.mine.bukkit.api.block.BlockData getNextState() {
-        return nextState;
+        return stack == null ? null : stack.above(this);
     }
 
     @Override
     public void setNextState(com.elmakers.mine.bukkit.api.block.BlockData next) {
-        nextState = next;
+        if (next == null) {
+            if (stack != null) {
+                stack.removeAbove(this);
+            }
+        } else if (next instanceof BlockData) {
+            BlockStateStack.link(this, (BlockData)next);
+        }
     }
 
     @Override
     public com.elmakers.mine.bukkit.api.block.BlockData getPriorState() {
-        return priorState;
+        return stack == null ? null : stack.below(this);
     }
 
     @Override
     public void setPriorState(com.elmakers.mine.bukkit.api.block.BlockData prior) {
-        priorState = prior;
+        if (prior == null) {
+            if (stack != null) {
+                stack.removeBelow(this, false);
+            }
+        } else if (prior instanceof BlockData) {
+            BlockStateStack.link((BlockData)prior, this);
+        }
+    }
+
+    /**
+     * @return The undo records at this position, or null if this is the only one
+     */
+    public BlockStateStack getStateStack() {
+        return stack;
+    }
+
+    /**
+     * @return The number of undo records at this position, including this one
+     */
+    public int getStackDepth() {
+        return stack == null ? 1 : stack.size();
     }
 
     @Override
@@ -345,8 +404,10 @@ public class BlockData extends MaterialAndData implements com.elmakers.mine.bukk
     public boolean containsAny(Set<Material> materials)
     {
         if (materials.contains(material)) return true;
-        if (priorState != null) {
-            return priorState.containsAny(materials);
+        if (stack != null) {
+            for (int index = stack.indexOf(this) - 1; index >= 0; index--) {
+                if (materials.contains(stack.get(index).getMaterial())) return true;
+            }
         }
 
         return false;
@@ -0,0 +1,297 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * A block position packed into a single long, used to key the block registries.
+ *
+ * The layout, from the high bits down, is:
+ *
+ * - 6 bits of world index, see WorldIndex
+ * - 10 bits of Y, offset so that -512 through 511 are representable
+ * - 24 bits of Z, signed
+ * - 24 bits of X, signed
+ *
+ * This covers X and Z within 8 million blocks of the origin, in the first 63 worlds.
+ * Positions outside of that (out towards the world border, or in later worlds) are
+ * never wrapped. They are interned instead: given the last world index, and a serial
+ * number looked up in a table. Every position has its own key either way, and the
+ * static methods decode both kinds. Interned positions are kept for the life of the
+ * server, which is fine for the rare edits that need them.
+ *
+ * Most code should use the static methods and pass keys around as primitive longs,
+ * but this class can also be used as an immutable value when an Object is needed.
+ */
+public final class BlockKey implements Comparable<BlockKey> {
+    public static final int WORLD_BITS = 6;
+    public static final int Y_BITS = 10;
+    public static final int XZ_BITS = 24;
+
+    // World indices below this are packed, the last one marks interned keys
+    public static final int PACKED_WORLDS = (1 << WORLD_BITS) - 1;
+
+    private static final int Y_OFFSET = 1 << (Y_BITS - 1);
+    private static final int XZ_LIMIT = 1 << (XZ_BITS - 1);
+    private static final long XZ_MASK = (1L << XZ_BITS) - 1;
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+    private static final int Z_SHIFT = XZ_BITS;
+    private static final int Y_SHIFT = XZ_BITS * 2;
+    private static final int WORLD_SHIFT = Y_SHIFT + Y_BITS;
+    private static final long INTERNED = (long)PACKED_WORLDS << WORLD_SHIFT;
+
+    // Clears the in-chunk X and Z and all of Y, leaving the world and chunk coordinates
+    private static final long CHUNK_MASK = ~(0xFL | (0xFL << Z_SHIFT) | (Y_MASK << Y_SHIFT));
+
+    // Layout of chunk order keys below the world index
+    private static final int CHUNK_X_ORDER_SHIFT = Y_BITS + 8;
+    private static final int CHUNK_Z_ORDER_SHIFT = CHUNK_X_ORDER_SHIFT + XZ_BITS - 4;
+    private static final long CHUNK_ORDER_MASK = (1L << (XZ_BITS - 4)) - 1;
+
+    private static final Map<Position, Long> internedKeys = new HashMap<Position, Long>();
+    private static final List<Position> internedPositions = new ArrayList<Position>();
+
+    // A position that does not fit in a packed key
+    private static final class Position {
+        private final int worldIndex;
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private Position(int worldIndex, int x, int y, int z) {
+            this.worldIndex = worldIndex;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((worldIndex * 31 + x) * 31 + y) * 31 + z;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Position)) return false;
+            Position position = (Position)other;
+            return position.worldIndex == worldIndex && position.x == x && position.y == y && position.z == z;
+        }
+    }
+
+    private final long key;
+
+    public BlockKey(long key) {
+        this.key = key;
+    }
+
+    public BlockKey(String worldName, int x, int y, int z) {
+        this(toKey(worldName, x, y, z));
+    }
+
+    public BlockKey(Block block) {
+        this(toKey(block));
+    }
+
+    public static long toKey(int worldIndex, int x, int y, int z) {
+        if (worldIndex < 0 || worldIndex >= PACKED_WORLDS
+                || x < -XZ_LIMIT || x >= XZ_LIMIT || z < -XZ_LIMIT || z >= XZ_LIMIT
+                || y < -Y_OFFSET || y >= Y_OFFSET) {
+            return intern(worldIndex, x, y, z);
+        }
+        return ((long)worldIndex << WORLD_SHIFT)
+            | (((long)(y + Y_OFFSET) & Y_MASK) << Y_SHIFT)
+            | (((long)z & XZ_MASK) << Z_SHIFT)
+            | ((long)x & XZ_MASK);
+    }
+
+    public static long toKey(String worldName, int x, int y, int z) {
+        return toKey(WorldIndex.getIndex(worldName), x, y, z);
+    }
+
+    public static long toKey(World world, int x, int y, int z) {
+        return toKey(WorldIndex.getIndex(world), x, y, z);
+    }
+
+    public static long toKey(Block block) {
+        return toKey(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public static long toKey(Location location) {
+        return toKey(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    private static synchronized long intern(int worldIndex, int x, int y, int z) {
+        Position position = new Position(worldIndex, x, y, z);
+        Long key = internedKeys.get(position);
+        if (key == null) {
+            key = INTERNED | internedPositions.size();
+            internedPositions.add(position);
+            internedKeys.put(position, key);
+        }
+        return key;
+    }
+
+    private static synchronized Position getInterned(long key) {
+        return internedPositions.get((int)(key & ~INTERNED));
+    }
+
+    /**
+     * @return false if the key is interned, rather than holding its position directly
+     */
+    public static boolean isPacked(long key) {
+        return (key & INTERNED) != INTERNED;
+    }
+
+    public static int getWorldIndex(long key) {
+        if (!isPacked(key)) return getInterned(key).worldIndex;
+        return (int)(key >>> WORLD_SHIFT);
+    }
+
+    public static int getX(long key) {
+        if (!isPacked(key)) return getInterned(key).x;
+        return (int)(key << (64 - XZ_BITS) >> (64 - XZ_BITS));
+    }
+
+    public static int getY(long key) {
+        if (!isPacked(key)) return getInterned(key).y;
+        return (int)((key >>> Y_SHIFT) & Y_MASK) - Y_OFFSET;
+    }
+
+    public static int getZ(long key) {
+        if (!isPacked(key)) return getInterned(key).z;
+        return (int)(key << (64 - Y_SHIFT) >> (64 - XZ_BITS));
+    }
+
+    /**
+     * @return The number of positions that have been given interned keys
+     */
+    public static synchronized int getInternedCount() {
+        return internedPositions.size();
+    }
+
+    public static String getWorldName(long key) {
+        return WorldIndex.getWorldName(getWorldIndex(key));
+    }
+
+    /**
+     * Get a key identifying the chunk containing a block.
+     *
+     * Chunk keys use the same layout as block keys, so they can share the same maps.
+     *
+     * @param key The block key
+     * @return A key shared by all blocks in the same chunk
+     */
+    public static long getChunkKey(long key) {
+        if (!isPacked(key)) {
+            Position position = getInterned(key);
+            return toKey(position.worldIndex, position.x & ~0xF, -Y_OFFSET, position.z & ~0xF);
+        }
+        return key & CHUNK_MASK;
+    }
+
+    public static long getChunkKey(int worldIndex, int chunkX, int chunkZ) {
+        return toKey(worldIndex, chunkX << 4, -Y_OFFSET, chunkZ << 4);
+    }
+
+    /**
+     * Rearrange the bits of a key so that sorting keys numerically groups them by chunk,
+     * then by Y within each chunk.
+     *
+     * Interned keys are left as they are, so they sort together but are not grouped
+     * by chunk.
+     *
+     * @param key The key to rearrange
+     * @return A sort key, which can be turned back with fromChunkOrder
+     */
+    public static long toChunkOrder(long key) {
+        if (!isPacked(key)) return key;
+        long y = (key >>> Y_SHIFT) & Y_MASK;
+        long z = (key >>> Z_SHIFT) & XZ_MASK;
+        long x = key & XZ_MASK;
+        return (key & (~0L << WORLD_SHIFT))
+            | ((z >>> 4) << CHUNK_Z_ORDER_SHIFT)
+            | ((x >>> 4) << CHUNK_X_ORDER_SHIFT)
+            | (y << 8) | ((z & 0xF) << 4) | (x & 0xF);
+    }
+
+    public static long fromChunkOrder(long order) {
+        if (!isPacked(order)) return order;
+        long chunkZ = (order >>> CHUNK_Z_ORDER_SHIFT) & CHUNK_ORDER_MASK;
+        long chunkX = (order >>> CHUNK_X_ORDER_SHIFT) & CHUNK_ORDER_MASK;
+        long y = (order >>> 8) & Y_MASK;
+        long z = (chunkZ << 4) | ((order >>> 4) & 0xF);
+        long x = (chunkX << 4) | (order & 0xF);
+        return (order & (~0L << WORLD_SHIFT)) | (y << Y_SHIFT) | (z << Z_SHIFT) | x;
+    }
+
+    public static int getChunkX(long key) {
+        return getX(key) >> 4;
+    }
+
+    public static int getChunkZ(long key) {
+        return getZ(key) >> 4;
+    }
+
+    public static Block getBlock(long key) {
+        World world = WorldIndex.getWorld(getWorldIndex(key));
+        return world == null ? null : world.getBlockAt(getX(key), getY(key), getZ(key));
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public int getWorldIndex() {
+        return getWorldIndex(key);
+    }
+
+    public String getWorldName() {
+        return getWorldName(key);
+    }
+
+    public int getX() {
+        return getX(key);
+    }
+
+    public int getY() {
+        return getY(key);
+    }
+
+    public int getZ() {
+        return getZ(key);
+    }
+
+    public long getChunkKey() {
+        return getChunkKey(key);
+    }
+
+    public Block getBlock() {
+        return getBlock(key);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int)(key ^ (key >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof BlockKey && ((BlockKey)other).key == key;
+    }
+
+    @Override
+    public int compareTo(BlockKey other) {
+        return key < other.key ? -1 : (key == other.key ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return getX() + "," + getY() + "," + getZ() + "," + getWorldName();
+    }
+}
@@ -1,19 +1,21 @@
 package com.elmakers.mine.bukkit.block;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.bukkit.Bukkit;
 import org.bukkit.block.Block;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.util.BlockVector;
 import org.bukkit.util.Vector;
 
 import com.elmakers.mine.bukkit.api.block.BlockData;
+import com.elmakers.mine.bukkit.utility.LongHashSet;
 
 public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
 
@@ -21,7 +23,8 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
     protected String					worldName;
 
     protected LinkedList<BlockData> 	blockList;
-    protected HashSet<Long>        		blockIdMap;
+    protected LongHashSet        		blockIdMap;
+    protected BlockListFormat           saveFormat = BlockListFormat.LEGACY;
 
     public BlockList()
     {
@@ -76,7 +79,7 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
 
         if (blockIdMap == null)
         {
-            blockIdMap = new HashSet<Long>();
+            blockIdMap = new LongHashSet();
         }
 
         if (blockList == null)
@@ -86,9 +89,29 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
 
         blockIdMap.add(blockData.getId());
         blockList.addLast(blockData);
+        blocksChanged();
         return true;
     }
 
+    /**
+     * Called after blocks are added to or removed from this list.
+     *
+     * This is where subclasses keep their memory estimates up to date.
+     */
+    protected void blocksChanged()
+    {
+    }
+
+    /**
+     * Estimate the memory used by the blocks in this list.
+     *
+     * @return The estimate, in bytes
+     */
+    public long getEstimatedMemory()
+    {
+        return (long)size() * com.elmakers.mine.bukkit.block.BlockData.ESTIMATED_MEMORY;
+    }
+
     @Override
     public void contain(Vector vector)
     {
@@ -126,6 +149,7 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
             return;
         }
         blockList.clear();
+        blocksChanged();
     }
 
     @Override
@@ -135,6 +159,16 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
         return blockIdMap.contains(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
     }
 
+    public boolean contains(BlockKey blockKey)
+    {
+        return blockKey != null && containsKey(blockKey.getKey());
+    }
+
+    public boolean containsKey(long blockKey)
+    {
+        return blockIdMap != null && blockIdMap.contains(blockKey);
+    }
+
     public boolean contains(BlockData blockData)
     {
         if (blockIdMap == null || blockData == null)
@@ -153,8 +187,14 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
         if (arg0 instanceof BlockData) {
             return contains((BlockData)arg0);
         }
+        if (arg0 instanceof BlockKey) {
+            return contains((BlockKey)arg0);
+        }
         // Fall back to map
-        return blockIdMap == null ? false : blockIdMap.contains(arg0);
+        if (arg0 instanceof Long) {
+            return containsKey((Long)arg0);
+        }
+        return false;
     }
 
     public boolean containsAll(Collection<?> arg0)
@@ -163,7 +203,11 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
         {
             return false;
         }
-        return blockIdMap.containsAll(arg0);
+        for (Object o : arg0)
+        {
+            if (!contains(o)) return false;
+        }
+        return true;
     }
 
     // Collection interface- would be great if I could just extend HashSet and
@@ -212,7 +256,9 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
         {
             blockIdMap.remove(((BlockData)removeObject).getId());
         }
-        return blockList.remove(removeObject);
+        boolean removed = blockList.remove(removeObject);
+        blocksChanged();
+        return removed;
     }
 
     public boolean removeAll(Collection<?> removeCollection)
@@ -228,7 +274,9 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
                 blockIdMap.remove(((BlockData)removeObject).getId());
             }
         }
-        return blockList.removeAll(removeCollection);
+        boolean removed = blockList.removeAll(removeCollection);
+        blocksChanged();
+        return removed;
     }
 
     public boolean retainAll(Collection<?> arg0)
@@ -237,7 +285,9 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
         {
             return false;
         }
-        return blockList.retainAll(arg0);
+        boolean changed = blockList.retainAll(arg0);
+        blocksChanged();
+        return changed;
     }
 
     public void setArea(BoundingBox area)
@@ -251,12 +301,13 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
         if (blockList != null)
         {
             this.blockList = new LinkedList<BlockData>(blockList);
-            blockIdMap = new HashSet<Long>();
+            blockIdMap = new LongHashSet(blockList.size());
             for (BlockData block : blockList)
             {
                 blockIdMap.add(block.getId());
             }
         }
+        blocksChanged();
     }
 
     public BlockData get(int index)
@@ -288,6 +339,18 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
 
     public void load(ConfigurationSection node) {
         worldName = node.getString("world");
+        String encoded = node.getString("block_data");
+        if (encoded != null) {
+            try {
+                for (BlockData deserialized : BlockListCodec.decodeString(encoded)) {
+                    if (worldName == null) worldName = deserialized.getWorldName();
+                    add(deserialized);
+                }
+            } catch (IOException ex) {
+                Bukkit.getLogger().warning("Failed to load block list: " + ex.getMessage());
+            }
+            return;
+        }
         List<String> blockData = node.getStringList("blocks");
         if (blockData != null) {
             for (String blockString : blockData) {
@@ -300,15 +363,31 @@ public class BlockList implements com.elmakers.mine.bukkit.api.block.BlockList {
 
     public void save(ConfigurationSection node) {
         node.set("world", worldName);
+        if (saveFormat != BlockListFormat.LEGACY && size() > 0) {
+            try {
+                node.set("block_data", BlockListCodec.encodeString(this, saveFormat == BlockListFormat.COMPRESSED));
+                return;
+            } catch (IOException ex) {
+                Bukkit.getLogger().warning("Failed to encode block list, falling back to legacy format: " + ex.getMessage());
+            }
+        }
         List<String> blockData = new ArrayList<String>();
-        if (blockList != null) {
-            for (BlockData block : blockList) {
+        if (size() > 0) {
+            for (BlockData block : this) {
                 blockData.add(block.toString());
             }
             node.set("blocks", blockData);
         }
     }
 
+    public void setSaveFormat(BlockListFormat saveFormat) {
+        this.saveFormat = saveFormat == null ? BlockListFormat.LEGACY : saveFormat;
+    }
+
+    public BlockListFormat getSaveFormat() {
+        return saveFormat;
+    }
+
     public String getWorldName() {
         return worldName;
     }
@@ -0,0 +1,227 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.bukkit.Material;
+import org.bukkit.util.BlockVector;
+
+import com.elmakers.mine.bukkit.api.block.BlockData;
+import com.elmakers.mine.bukkit.utility.Base64Coder;
+
+/**
+ * Encodes lists of blocks in a compact binary format, for persisting undo data.
+ *
+ * The format is a two-byte header (version, flags) followed by, optionally deflated:
+ *
+ * - A table of world names
+ * - A palette of material name and data pairs
+ * - The block count, then for each block a world table index, the X, Y and Z deltas
+ *   from the previous block, and a palette index
+ *
+ * All integers are varints, and the deltas are zig-zag encoded, so runs of nearby blocks
+ * made of a handful of materials take a few bytes each. As with the legacy format, only
+ * the material and data of each block are stored.
+ *
+ * Decoding checks every count and table index, so corrupt or truncated data fails with
+ * an IOException rather than a runtime exception.
+ */
+public class BlockListCodec {
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATED = 1;
+
+    // Sanity limit on table sizes, so corrupt data can not ask for a huge array
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    public static byte[] encode(Iterable<BlockData> blocks, boolean compress) throws IOException {
+        Map<String, Integer> worlds = new HashMap<String, Integer>();
+        List<String> worldTable = new ArrayList<String>();
+        Map<String, Integer> palette = new HashMap<String, Integer>();
+        List<BlockData> paletteTable = new ArrayList<BlockData>();
+
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        int blockCount = 0;
+        int lastX = 0;
+        int lastY = 0;
+        int lastZ = 0;
+        for (BlockData block : blocks) {
+            String worldName = block.getWorldName();
+            Integer worldIndex = worlds.get(worldName);
+            if (worldIndex == null) {
+                worldIndex = worldTable.size();
+                worlds.put(worldName, worldIndex);
+                worldTable.add(worldName);
+            }
+            Material material = block.getMaterial();
+            Short data = block.getData();
+            String paletteKey = (material == null ? "" : material.name()) + ":" + data;
+            Integer paletteIndex = palette.get(paletteKey);
+            if (paletteIndex == null) {
+                paletteIndex = paletteTable.size();
+                palette.put(paletteKey, paletteIndex);
+                paletteTable.add(block);
+            }
+
+            BlockVector position = block.getPosition();
+            int x = position.getBlockX();
+            int y = position.getBlockY();
+            int z = position.getBlockZ();
+            writeVarInt(blockBytes, worldIndex);
+            writeVarInt(blockBytes, zigZag(x - lastX));
+            writeVarInt(blockBytes, zigZag(y - lastY));
+            writeVarInt(blockBytes, zigZag(z - lastZ));
+            writeVarInt(blockBytes, paletteIndex);
+            lastX = x;
+            lastY = y;
+            lastZ = z;
+            blockCount++;
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(blockBytes.size() + 256);
+        result.write(VERSION);
+        result.write(compress ? FLAG_DEFLATED : 0);
+        OutputStream body = compress ? new DeflaterOutputStream(result) : result;
+        DataOutputStream out = new DataOutputStream(body);
+
+        writeVarInt(out, worldTable.size());
+        for (String worldName : worldTable) {
+            out.writeUTF(worldName == null ? "" : worldName);
+        }
+        writeVarInt(out, paletteTable.size());
+        for (BlockData block : paletteTable) {
+            Material material = block.getMaterial();
+            Short data = block.getData();
+            out.writeUTF(material == null ? "" : material.name());
+            // Zero is reserved for wildcard data
+            writeVarInt(out, data == null ? 0 : zigZag(data) + 1);
+        }
+        writeVarInt(out, blockCount);
+        blockBytes.writeTo(out);
+        out.close();
+
+        return result.toByteArray();
+    }
+
+    public static List<com.elmakers.mine.bukkit.block.BlockData> decode(byte[] bytes) throws IOException {
+        if (bytes.length < 2) {
+            throw new IOException("Block data is truncated");
+        }
+        int version = bytes[0];
+        if (version != VERSION) {
+            throw new IOException("Unknown block data version: " + version);
+        }
+        int flags = bytes[1];
+        InputStream body = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+        if ((flags & FLAG_DEFLATED) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        DataInputStream in = new DataInputStream(body);
+        try {
+            int worldCount = readCount(in, MAX_TABLE_SIZE, "world table");
+            String[] worldTable = new String[worldCount];
+            for (int i = 0; i < worldCount; i++) {
+                worldTable[i] = in.readUTF();
+            }
+            int paletteCount = readCount(in, MAX_TABLE_SIZE, "palette");
+            Material[] materials = new Material[paletteCount];
+            Short[] data = new Short[paletteCount];
+            for (int i = 0; i < paletteCount; i++) {
+                String materialName = in.readUTF();
+                materials[i] = materialName.isEmpty() ? null : Material.getMaterial(materialName);
+                int encodedData = readVarInt(in);
+                data[i] = encodedData == 0 ? null : (short)unZigZag(encodedData - 1);
+            }
+
+            int blockCount = readCount(in, Integer.MAX_VALUE, "block count");
+            List<com.elmakers.mine.bukkit.block.BlockData> blocks = new ArrayList<com.elmakers.mine.bukkit.block.BlockData>(Math.min(blockCount, 4096));
+            int x = 0;
+            int y = 0;
+            int z = 0;
+            for (int i = 0; i < blockCount; i++) {
+                String worldName = worldTable[readIndex(in, worldCount, "world")];
+                x += unZigZag(readVarInt(in));
+                y += unZigZag(readVarInt(in));
+                z += unZigZag(readVarInt(in));
+                int paletteIndex = readIndex(in, paletteCount, "palette");
+                com.elmakers.mine.bukkit.block.BlockData block = new com.elmakers.mine.bukkit.block.BlockData(x, y, z, worldName, materials[paletteIndex], (byte)0);
+                block.setData(data[paletteIndex]);
+                blocks.add(block);
+            }
+            return blocks;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static String encodeString(Iterable<BlockData> blocks, boolean compress) throws IOException {
+        return new String(Base64Coder.encode(encode(blocks, compress)));
+    }
+
+    public static List<com.elmakers.mine.bukkit.block.BlockData> decodeString(String encoded) throws IOException {
+        try {
+            return decode(Base64Coder.decode(encoded));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid block data encoding: " + ex.getMessage());
+        }
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readCount(InputStream in, int limit, String name) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > limit) {
+            throw new IOException("Invalid " + name + " size in block data: " + count);
+        }
+        return count;
+    }
+
+    private static int readIndex(InputStream in, int size, String name) throws IOException {
+        int index = readVarInt(in);
+        if (index < 0 || index >= size) {
+            throw new IOException("Invalid " + name + " index in block data: " + index);
+        }
+        return index;
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (shift < 35) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Block data is truncated");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        throw new IOException("Malformed varint in block data");
+    }
+}
@@ -0,0 +1,23 @@
+package com.elmakers.mine.bukkit.block;
+
+/**
+ * The encodings a BlockList may be saved with.
+ *
+ * Loading always accepts any of these, so changing the format is safe at any time.
+ */
+public enum BlockListFormat {
+    /**
+     * One "x,y,z,world|id:data" string per block, in a list.
+     */
+    LEGACY,
+
+    /**
+     * A single binary string, see BlockListCodec.
+     */
+    BINARY,
+
+    /**
+     * The binary format, deflated.
+     */
+    COMPRESSED
+}
@@ -0,0 +1,214 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The undo records for a single block position, oldest first.
+ *
+ * Each record holds the state of the block from before its UndoList changed it, so the
+ * bottom record holds the original state of the block, and each record above holds the
+ * state left behind by the change below it.
+ *
+ * Stacks are only created once a second record is registered at a position, and are
+ * dropped again once they are back down to a single record. BlockData reads its prior
+ * and next states from here rather than keeping its own links, so undoing, committing
+ * or dropping a record from the middle of the stack is a single array shift rather than
+ * a walk over a linked chain.
+ */
+public class BlockStateStack {
+    private BlockData[] entries;
+    private int size;
+
+    private BlockStateStack(BlockData bottom) {
+        entries = new BlockData[4];
+        entries[0] = bottom;
+        size = 1;
+        bottom.stack = this;
+    }
+
+    /**
+     * Put a record on top of another one, creating a stack if needed.
+     *
+     * @param below The record to put the new one above
+     * @param entry The new record
+     */
+    static void link(BlockData below, BlockData entry) {
+        if (entry.stack != null) {
+            entry.stack.remove(entry);
+        }
+        BlockStateStack stack = below.stack;
+        if (stack == null) {
+            stack = new BlockStateStack(below);
+        }
+        stack.insert(stack.indexOf(below) + 1, entry);
+    }
+
+    /**
+     * Put a record underneath another one, creating a stack if needed.
+     *
+     * This is used when an older record is reloaded after newer ones have been
+     * registered at the same position.
+     *
+     * @param above The record to put the new one below
+     * @param entry The new record
+     */
+    static void linkBelow(BlockData above, BlockData entry) {
+        if (entry.stack != null) {
+            entry.stack.remove(entry);
+        }
+        BlockStateStack stack = above.stack;
+        if (stack == null) {
+            stack = new BlockStateStack(entry);
+            stack.insert(1, above);
+        } else {
+            stack.insert(stack.indexOf(above), entry);
+        }
+    }
+
+    private void insert(int index, BlockData entry) {
+        if (size == entries.length) {
+            BlockData[] newEntries = new BlockData[size * 2];
+            System.arraycopy(entries, 0, newEntries, 0, size);
+            entries = newEntries;
+        }
+        System.arraycopy(entries, index, entries, index + 1, size - index);
+        entries[index] = entry;
+        size++;
+        entry.stack = this;
+    }
+
+    public int indexOf(BlockData entry) {
+        // Most lookups are at or near the top
+        for (int i = size - 1; i >= 0; i--) {
+            if (entries[i] == entry) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public BlockData get(int index) {
+        return index >= 0 && index < size ? entries[index] : null;
+    }
+
+    public BlockData below(BlockData entry) {
+        return get(indexOf(entry) - 1);
+    }
+
+    public BlockData above(BlockData entry) {
+        int index = indexOf(entry);
+        return index < 0 ? null : get(index + 1);
+    }
+
+    public BlockData getTop() {
+        return size == 0 ? null : entries[size - 1];
+    }
+
+    /**
+     * @return The oldest record, which holds the original state of this block
+     */
+    public BlockData getBottom() {
+        return size == 0 ? null : entries[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A copy of the records in this stack, oldest first
+     */
+    public List<BlockData> getEntries() {
+        List<BlockData> result = new ArrayList<BlockData>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(entries[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Remove a single record, leaving the rest of the stack in place.
+     *
+     * @param entry The record to remove
+     */
+    void remove(BlockData entry) {
+        int index = indexOf(entry);
+        if (index < 0) return;
+        removeRange(index, index + 1, false);
+    }
+
+    /**
+     * Remove every record below the given one.
+     *
+     * @param entry The record to keep, along with everything above it
+     * @param committed Whether to mark the removed records as committed
+     */
+    void removeBelow(BlockData entry, boolean committed) {
+        int index = indexOf(entry);
+        if (index <= 0) return;
+        removeRange(0, index, committed);
+    }
+
+    /**
+     * Remove every record above the given one.
+     *
+     * @param entry The record to keep, along with everything below it
+     */
+    void removeAbove(BlockData entry) {
+        int index = indexOf(entry);
+        if (index < 0) return;
+        removeRange(index + 1, size, false);
+    }
+
+    /**
+     * Commit the top record of this stack, dropping the whole stack in one pass.
+     *
+     * This has the same result as committing the top record, which marks every record
+     * below it as committed, without shifting the stack down one record at a time.
+     *
+     * @return The number of records that were in the stack
+     */
+    int commitTop() {
+        int count = size;
+        for (int i = 0; i < size; i++) {
+            entries[i].stack = null;
+            if (i < size - 1) {
+                entries[i].committed = true;
+            }
+            entries[i] = null;
+        }
+        size = 0;
+        return count;
+    }
+
+    /**
+     * Drop every record from this stack.
+     */
+    void clear() {
+        removeRange(0, size, false);
+    }
+
+    private void removeRange(int from, int to, boolean committed) {
+        if (from >= to) return;
+        for (int i = from; i < to; i++) {
+            entries[i].stack = null;
+            if (committed) {
+                entries[i].committed = true;
+            }
+        }
+        System.arraycopy(entries, to, entries, from, size - to);
+        int removed = to - from;
+        for (int i = size - removed; i < size; i++) {
+            entries[i] = null;
+        }
+        size -= removed;
+
+        // A single record doesn't need a stack
+        if (size == 1) {
+            entries[0].stack = null;
+            entries[0] = null;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+
+import com.elmakers.mine.bukkit.utility.LongHashMap;
+import com.elmakers.mine.bukkit.utility.LongHashSet;
+import com.elmakers.mine.bukkit.utility.NMSUtils;
+
+/**
+ * Collects block writes and applies them a chunk at a time.
+ *
+ * Writes that would not change the block are dropped when submitted, so
+ * re-casting over an existing structure only pays for what actually changes.
+ * The rest wait until flush, which groups them by chunk in the order each chunk
+ * was first written to, keeping submission order within a chunk.
+ *
+ * Each chunk group is applied in phases: block types are set with physics off,
+ * then tile entity data is applied. Once every group has been placed, blocks are
+ * updated with physics a group at a time, if physics is on, so that nothing
+ * reacts to a half-built structure.
+ *
+ * With deferred physics, flush never applies physics. Changed blocks are
+ * remembered instead, and updateDeferred runs physics and lighting over all of
+ * them in one chunk-ordered pass, such as when a batch finishes.
+ *
+ * Targets are held by reference until flushed, so must not change in the
+ * meantime. Use writeCopy for targets that do, such as a MaterialBrush.
+ */
+public class BlockWritePipeline {
+    private final boolean applyPhysics;
+    private final List<Write> pending = new ArrayList<Write>();
+    private final LongHashMap<Write> pendingById = new LongHashMap<Write>();
+    private boolean deferPhysics = false;
+    private LongHashSet deferred;
+
+    private int written = 0;
+    private int skipped = 0;
+    private int chunks = 0;
+
+    private static class Write {
+        private final Block block;
+        private final long blockId;
+        private final long chunkId;
+        private MaterialAndData target;
+
+        private Write(Block block, long blockId, MaterialAndData target) {
+            this.block = block;
+            this.blockId = blockId;
+            this.chunkId = BlockKey.getChunkKey(blockId);
+            this.target = target;
+        }
+    }
+
+    public BlockWritePipeline(boolean applyPhysics) {
+        this.applyPhysics = applyPhysics;
+    }
+
+    /**
+     * Leave physics for changed blocks until updateDeferred is called.
+     *
+     * This has no effect if physics is off.
+     *
+     * @param defer Whether to defer physics
+     */
+    public void setDeferPhysics(boolean defer) {
+        this.deferPhysics = defer;
+    }
+
+    public boolean isDeferringPhysics() {
+        return applyPhysics && deferPhysics;
+    }
+
+    /**
+     * Queue a block to be changed on the next flush.
+     *
+     * @param block The block to change
+     * @param target The state to change it to, which must not change until flushed
+     * @return false if the block already matches the target, and was skipped
+     */
+    public boolean write(Block block, MaterialAndData target) {
+        return submit(block, target, false);
+    }
+
+    /**
+     * Queue a block to be changed on the next flush, copying the target if the
+     * write is kept.
+     *
+     * @param block The block to change
+     * @param target The state to change it to
+     * @return false if the block already matches the target, and was skipped
+     */
+    public boolean writeCopy(Block block, MaterialAndData target) {
+        return submit(block, target, true);
+    }
+
+    private boolean submit(Block block, MaterialAndData target, boolean copy) {
+        if (block == null || target == null || !target.isValid()) return false;
+
+        // A later write to the same block replaces the earlier one
+        long blockId = BlockKey.toKey(block);
+        Write existing = pendingById.get(blockId);
+        if (existing == null && !target.isDifferent(block)) {
+            skipped++;
+            return false;
+        }
+        if (copy) {
+            target = new MaterialAndData(target);
+        }
+        if (existing != null) {
+            existing.target = target;
+        } else {
+            Write write = new Write(block, blockId, target);
+            pending.add(write);
+            pendingById.put(blockId, write);
+        }
+        return true;
+    }
+
+    /**
+     * Apply every queued write.
+     *
+     * @return The number of blocks changed
+     */
+    public int flush() {
+        if (pending.isEmpty()) return 0;
+
+        // Group by chunk, in the order chunks were first written to
+        List<List<Write>> groups = new ArrayList<List<Write>>();
+        LongHashMap<List<Write>> chunkGroups = new LongHashMap<List<Write>>();
+        for (Write write : pending) {
+            List<Write> group = chunkGroups.get(write.chunkId);
+            if (group == null) {
+                group = new ArrayList<Write>();
+                chunkGroups.put(write.chunkId, group);
+                groups.add(group);
+            }
+            group.add(write);
+        }
+        pending.clear();
+        pendingById.clear();
+
+        int count = 0;
+        for (List<Write> group : groups) {
+            count += apply(group);
+        }
+        if (isDeferringPhysics()) {
+            if (deferred == null) {
+                deferred = new LongHashSet();
+            }
+            for (List<Write> group : groups) {
+                for (Write write : group) {
+                    deferred.add(write.blockId);
+                }
+            }
+        } else if (applyPhysics) {
+            for (List<Write> group : groups) {
+                updatePhysics(group);
+            }
+        }
+        chunks += groups.size();
+        written += count;
+        return count;
+    }
+
+    private int apply(List<Write> group) {
+        int count = 0;
+        for (Write write : group) {
+            try {
+                write.target.modifyType(write.block, false);
+                count++;
+            } catch (Exception ex) {
+                Bukkit.getLogger().warning("Error updating block state: " + ex.getMessage());
+            }
+        }
+        for (Write write : group) {
+            if (write.target.extraData == null) continue;
+            try {
+                write.target.modifyExtraData(write.block, write.block.getState());
+            } catch (Exception ex) {
+                Bukkit.getLogger().warning("Error updating block state: " + ex.getMessage());
+            }
+        }
+        return count;
+    }
+
+    private void updatePhysics(List<Write> group) {
+        for (Write write : group) {
+            BlockState state = write.block.getState();
+            state.update(true, true);
+        }
+    }
+
+    /**
+     * Flush, then run physics and lighting for every block changed since deferring began.
+     *
+     * @return The number of blocks updated
+     */
+    public int updateDeferred() {
+        flush();
+        if (deferred == null || deferred.isEmpty()) return 0;
+        long[] blockIds = deferred.toArray();
+        deferred = null;
+        return updatePhysics(blockIds);
+    }
+
+    /**
+     * Run physics for a set of changed blocks, then recalculate lighting for
+     * their chunks, a chunk at a time.
+     *
+     * Blocks in chunks that are no longer loaded are skipped.
+     *
+     * @param blockIds The ids of the changed blocks
+     * @return The number of blocks updated
+     */
+    public static int updatePhysics(long[] blockIds) {
+        long[] order = new long[blockIds.length];
+        for (int i = 0; i < blockIds.length; i++) {
+            order[i] = BlockKey.toChunkOrder(blockIds[i]);
+        }
+        Arrays.sort(order);
+
+        int count = 0;
+        int position = 0;
+        while (position < order.length) {
+            long chunkId = BlockKey.getChunkKey(BlockKey.fromChunkOrder(order[position]));
+            int end = position;
+            while (end < order.length && BlockKey.getChunkKey(BlockKey.fromChunkOrder(order[end])) == chunkId) {
+                end++;
+            }
+            World world = WorldIndex.getWorld(BlockKey.getWorldIndex(chunkId));
+            int chunkX = BlockKey.getChunkX(chunkId);
+            int chunkZ = BlockKey.getChunkZ(chunkId);
+            if (world != null && world.isChunkLoaded(chunkX, chunkZ)) {
+                for (int i = position; i < end; i++) {
+                    long blockId = BlockKey.fromChunkOrder(order[i]);
+                    Block block = world.getBlockAt(BlockKey.getX(blockId), BlockKey.getY(blockId), BlockKey.getZ(blockId));
+                    block.getState().update(true, true);
+                    count++;
+                }
+                NMSUtils.relight(world.getChunkAt(chunkX, chunkZ));
+            }
+            position = end;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return The number of writes waiting for the next flush
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return The number of blocks changed by all flushes so far
+     */
+    public int getWritten() {
+        return written;
+    }
+
+    /**
+     * @return The number of writes dropped because the block already matched
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return The number of chunk groups applied by all flushes so far
+     */
+    public int getChunks() {
+        return chunks;
+    }
+}
@@ -138,36 +138,30 @@ public class BoundingBox implements com.elmakers.mine.bukkit.api.block.BoundingB
     }
 
     /**
-     * Fill this BB with a specified material, using the specified World
+     * Check to see if this BB overlaps another one
      *
-     * @param world
-     *            The world to fill
-     * @param material
-     *            The material to fill with
+     * @param other
+     *            The BB to check against
+     * @return true if the two BBs share any points
      */
-    public void fill(World world, Material material)
+    public boolean intersects(BoundingBox other)
     {
-        fill(world, material, null, null);
+        return min.getX() <= other.max.getX() && other.min.getX() <= max.getX()
+            && min.getY() <= other.max.getY() && other.min.getY() <= max.getY()
+            && min.getZ() <= other.max.getZ() && other.min.getZ() <= max.getZ();
     }
 
     /**
-     * Fill this BB with a specified material, using the specified World.
-     *
-     * This function respects a MaterialList to determine which blocks are ok to
-     * replace.
-     *
-     * Note that the HashMap will become a MaterialList soon!
+     * Fill this BB with a specified material, using the specified World
      *
      * @param world
      *            The world to fill
      * @param material
      *            The material to fill with
-     * @param destructable
-     *            A MaterialList describing which blocks are okay to replace
      */
-    public void fill(World world, Material material, Set<Material> destructable)
+    public void fill(World world, Material material)
     {
-        fill(world, material, destructable, null);
+        fill(world, material, null, null);
     }
 
     /**
@@ -190,6 +184,9 @@ public class BoundingBox implements com.elmakers.mine.bukkit.api.block.BoundingB
      */
     public void fill(World world, Material material, Set<Material> destructable, UndoList affected)
     {
+        // Blocks that are already filled are skipped, the rest are set a chunk at a time
+        MaterialAndData target = new MaterialAndData(material, (short)0);
+        BlockWritePipeline writes = new BlockWritePipeline(true);
         for (int x = min.getBlockX(); x < max.getBlockX(); x++)
         {
             for (int y = min.getBlockY(); y < max.getBlockY(); y++)
@@ -198,29 +195,46 @@ public class BoundingBox implements com.elmakers.mine.bukkit.api.block.BoundingB
                 {
                     Block block = world.getBlockAt(x, y, z);
 
-                    if (destructable == null)
+                    if (destructable == null || destructable.contains(block.getType()))
                     {
-                        if (affected != null)
+                        // Writes wait for the flush, so this still records the original block
+                        if (writes.write(block, target) && affected != null)
                         {
                             affected.add(block);
                         }
-                        block.setType(material);
-                    }
-                    else
-                    {
-                        Material blockType = block.getType();
-                        if (destructable.contains(blockType))
-                        {
-                            if (affected != null)
-                            {
-                                affected.add(block);
-                            }
-                            block.setType(material);
-                        }
                     }
                 }
             }
         }
+        writes.flush();
+    }
+
+    /**
+     * Fill this BB like fill does, but record the replaced blocks in the "affected"
+     * UndoList as one VolumeSnapshot rather than block by block.
+     *
+     * This takes far less memory for large fills. The snapshot only covers the
+     * blocks that are replaced, but they are not tracked in the modified block
+     * registry, so this should only be used for volumes that no other undo list
+     * will touch, see VolumeSnapshot.
+     *
+     * @param world
+     *            The world to fill
+     * @param material
+     *            The material to fill with
+     * @param destructable
+     *            A MaterialList describing which blocks are okay to replace
+     * @param affected
+     *            The UndoList to record the snapshot in
+     */
+    public void fillVolume(World world, Material material, Set<Material> destructable, UndoList affected)
+    {
+        if (affected != null)
+        {
+            MaterialAndData target = new MaterialAndData(material, (short)0);
+            affected.addVolume(VolumeSnapshot.capture(world, min.getBlockX(), min.getBlockY(), min.getBlockZ(), getSizeX(), getSizeY(), getSizeZ(), destructable, target));
+        }
+        fill(world, material, destructable, null);
     }
 
     /**
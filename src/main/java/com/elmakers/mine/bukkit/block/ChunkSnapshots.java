@@ -0,0 +1,83 @@
+package com.elmakers.mine.bukkit.block;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import com.elmakers.mine.bukkit.utility.LongHashMap;
+
+/**
+ * Read-only snapshots of a set of chunks, for reading blocks off the main thread.
+ *
+ * Snapshots are taken on the main thread with add, and can be read from any
+ * thread once taken. Reads outside of the snapshotted chunks return null.
+ */
+public class ChunkSnapshots {
+    private final World world;
+    private final int worldIndex;
+    // Read up front, World is not safe to call off the main thread
+    private final int maxHeight;
+    private final LongHashMap<ChunkSnapshot> snapshots = new LongHashMap<ChunkSnapshot>();
+
+    public ChunkSnapshots(World world) {
+        this.world = world;
+        this.worldIndex = WorldIndex.getIndex(world);
+        this.maxHeight = world.getMaxHeight();
+    }
+
+    /**
+     * Snapshot a chunk, loading it if needed. Main thread only.
+     *
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     */
+    public void add(int chunkX, int chunkZ) {
+        long chunkKey = BlockKey.getChunkKey(worldIndex, chunkX, chunkZ);
+        if (snapshots.containsKey(chunkKey)) return;
+        Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+        if (!chunk.isLoaded()) {
+            chunk.load();
+        }
+        snapshots.put(chunkKey, chunk.getChunkSnapshot());
+    }
+
+    public boolean contains(int x, int z) {
+        return snapshots.containsKey(BlockKey.getChunkKey(worldIndex, x >> 4, z >> 4));
+    }
+
+    private ChunkSnapshot getSnapshot(int x, int y, int z) {
+        if (y < 0 || y >= maxHeight) return null;
+        return snapshots.get(BlockKey.getChunkKey(worldIndex, x >> 4, z >> 4));
+    }
+
+    /**
+     * @return The material at a position, or null if its chunk was not snapshotted
+     */
+    @SuppressWarnings("deprecation")
+    public Material getType(int x, int y, int z) {
+        ChunkSnapshot snapshot = getSnapshot(x, y, z);
+        if (snapshot == null) return null;
+        return Material.getMaterial(snapshot.getBlockTypeId(x & 0xF, y, z & 0xF));
+    }
+
+    /**
+     * @return The data value at a position, or 0 if its chunk was not snapshotted
+     */
+    public byte getData(int x, int y, int z) {
+        ChunkSnapshot snapshot = getSnapshot(x, y, z);
+        if (snapshot == null) return 0;
+        return (byte)snapshot.getBlockData(x & 0xF, y, z & 0xF);
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * @return The number of chunks snapshotted
+     */
+    public int size() {
+        return snapshots.size();
+    }
+}
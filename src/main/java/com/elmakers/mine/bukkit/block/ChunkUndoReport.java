@@ -0,0 +1,64 @@
+package com.elmakers.mine.bukkit.block;
+
+/**
+ * A summary of the undo records held for a single chunk.
+ *
+ * These are generated by UndoList.getChunkReport, and sort largest first.
+ */
+public class ChunkUndoReport implements Comparable<ChunkUndoReport> {
+    private final String worldName;
+    private final int chunkX;
+    private final int chunkZ;
+    private final int blocks;
+    private final int layers;
+    private final long estimatedBytes;
+
+    public ChunkUndoReport(String worldName, int chunkX, int chunkZ, int blocks, int layers, long estimatedBytes) {
+        this.worldName = worldName;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.blocks = blocks;
+        this.layers = layers;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    /**
+     * @return The number of distinct modified block positions in this chunk
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The number of undo records in this chunk, counting every layer of overlapping changes
+     */
+    public int getLayers() {
+        return layers;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    @Override
+    public int compareTo(ChunkUndoReport other) {
+        return estimatedBytes > other.estimatedBytes ? -1 : (estimatedBytes == other.estimatedBytes ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return worldName + " [" + chunkX + "," + chunkZ + "]: " + blocks + " blocks, " + layers + " records, ~" + (estimatedBytes / 1024) + "KB";
+    }
+}
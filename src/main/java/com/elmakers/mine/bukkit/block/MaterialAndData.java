@@ -326,74 +326,92 @@ public class MaterialAndData implements com.elmakers.mine.bukkit.api.block.Mater
         modify(block, false);
     }
 
-    @SuppressWarnings("deprecation")
     public void modify(Block block, boolean applyPhysics) {
         if (!isValid) return;
 
         try {
-            BlockState blockState = block.getState();
-            // Clear chests so they don't dump their contents.
-            if (blockState instanceof InventoryHolder) {
-                NMSUtils.clearItems(block.getLocation());
-            }
+            BlockState blockState = modifyType(block, applyPhysics);
+            modifyExtraData(block, blockState);
+        } catch (Exception ex) {
+            Bukkit.getLogger().warning("Error updating block state: " + ex.getMessage());
+        }
+    }
 
-            if (material != null) {
-                byte blockData = data != null ? (byte)(short)data : block.getData();
-                block.setTypeIdAndData(material.getId(), blockData, applyPhysics);
-                blockState = block.getState();
-            }
+    /**
+     * Set the material and data of a block, without touching tile entity data.
+     *
+     * @return The block's state after the change
+     */
+    @SuppressWarnings("deprecation")
+    protected BlockState modifyType(Block block, boolean applyPhysics) {
+        BlockState blockState = block.getState();
+        // Clear chests so they don't dump their contents.
+        if (blockState instanceof InventoryHolder) {
+            NMSUtils.clearItems(block.getLocation());
+        }
 
-            // Set tile entity data first
-            // Command blocks still prefer internal data for parameterized commands
-            if (blockState != null && blockState instanceof CommandBlock && extraData != null && extraData instanceof BlockCommand) {
-                CommandBlock command = (CommandBlock)blockState;
-                BlockCommand commandData = (BlockCommand)extraData;
-                command.setCommand(commandData.command);
-                if (commandData.customName != null) {
-                    command.setName(commandData.customName);
-                }
-                command.update();
-            } else if (extraData != null && extraData instanceof BlockTileEntity) {
-                // Tile entity data overrides everything else, and may replace all of this in the future.
-                NMSUtils.setTileEntityData(block.getLocation(), ((BlockTileEntity) extraData).data);
-            } else if (blockState != null && (material == Material.STANDING_BANNER || material == Material.WALL_BANNER) && extraData != null && extraData instanceof BlockBanner) {
-                if (blockState != null && blockState instanceof Banner) {
-                    BlockBanner bannerData = (BlockBanner)extraData;
-                    Banner banner = (Banner)blockState;
-                    if (bannerData.patterns != null)
-                    {
-                        banner.setPatterns(bannerData.patterns);
-                    }
-                    if (bannerData.baseColor != null)
-                    {
-                        banner.setBaseColor(bannerData.baseColor);
-                    }
-                }
-                blockState.update(true, false);
-            } else if (blockState != null && blockState instanceof Skull && extraData != null && extraData instanceof BlockSkull) {
-                Skull skull = (Skull)blockState;
-                BlockSkull skullData = (BlockSkull)extraData;
-                if (skullData.skullType != null) {
-                    skull.setSkullType(skullData.skullType);
-                }
-                if (skullData.rotation != null) {
-                    skull.setRotation(skullData.rotation);
-                }
-                if (skullData.profile != null) {
-                    CompatibilityUtils.setSkullProfile(skull, skullData.profile);
+        if (material != null) {
+            byte blockData = data != null ? (byte)(short)data : block.getData();
+            block.setTypeIdAndData(material.getId(), blockData, applyPhysics);
+            blockState = block.getState();
+        }
+        return blockState;
+    }
+
+    /**
+     * Apply tile entity data to a block whose type has already been set.
+     */
+    protected void modifyExtraData(Block block, BlockState blockState) {
+        if (extraData == null) return;
+
+        // Set tile entity data first
+        // Command blocks still prefer internal data for parameterized commands
+        if (blockState != null && blockState instanceof CommandBlock && extraData != null && extraData instanceof BlockCommand) {
+            CommandBlock command = (CommandBlock)blockState;
+            BlockCommand commandData = (BlockCommand)extraData;
+            command.setCommand(commandData.command);
+            if (commandData.customName != null) {
+                command.setName(commandData.customName);
+            }
+            command.update();
+        } else if (extraData != null && extraData instanceof BlockTileEntity) {
+            // Tile entity data overrides everything else, and may replace all of this in the future.
+            NMSUtils.setTileEntityData(block.getLocation(), ((BlockTileEntity) extraData).data);
+        } else if (blockState != null && (material == Material.STANDING_BANNER || material == Material.WALL_BANNER) && extraData != null && extraData instanceof BlockBanner) {
+            if (blockState != null && blockState instanceof Banner) {
+                BlockBanner bannerData = (BlockBanner)extraData;
+                Banner banner = (Banner)blockState;
+                if (bannerData.patterns != null)
+                {
+                    banner.setPatterns(bannerData.patterns);
                 }
-                skull.update(true, false);
-            } else if (blockState != null && blockState instanceof CreatureSpawner && extraData != null && extraData instanceof BlockMobSpawner) {
-                BlockMobSpawner spawnerData = (BlockMobSpawner)extraData;
-                if (spawnerData.mobName != null && !spawnerData.mobName.isEmpty())
+                if (bannerData.baseColor != null)
                 {
-                    CreatureSpawner spawner = (CreatureSpawner)blockState;
-                    spawner.setCreatureTypeByName(spawnerData.mobName);
-                    spawner.update();
+                    banner.setBaseColor(bannerData.baseColor);
                 }
             }
-        } catch (Exception ex) {
-            Bukkit.getLogger().warning("Error updating block state: " + ex.getMessage());
+            blockState.update(true, false);
+        } else if (blockState != null && blockState instanceof Skull && extraData != null && extraData instanceof BlockSkull) {
+            Skull skull = (Skull)blockState;
+            BlockSkull skullData = (BlockSkull)extraData;
+            if (skullData.skullType != null) {
+                skull.setSkullType(skullData.skullType);
+            }
+            if (skullData.rotation != null) {
+                skull.setRotation(skullData.rotation);
+            }
+            if (skullData.profile != null) {
+                CompatibilityUtils.setSkullProfile(skull, skullData.profile);
+            }
+            skull.update(true, false);
+        } else if (blockState != null && blockState instanceof CreatureSpawner && extraData != null && extraData instanceof BlockMobSpawner) {
+            BlockMobSpawner spawnerData = (BlockMobSpawner)extraData;
+            if (spawnerData.mobName != null && !spawnerData.mobName.isEmpty())
+            {
+                CreatureSpawner spawner = (CreatureSpawner)blockState;
+                spawner.setCreatureTypeByName(spawnerData.mobName);
+                spawner.update();
+            }
         }
     }
 
@@ -0,0 +1,395 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang.StringUtils;
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+
+import com.elmakers.mine.bukkit.utility.ConfigurationUtils;
+
+/**
+ * A Set of Materials backed by a bitset indexed by Material ordinal.
+ *
+ * Lookups are a shift and a mask rather than a hash lookup, which matters in
+ * targeting and undo sorting where membership is checked for every block.
+ *
+ * A set may be negated, in which case it contains every Material except those in
+ * its bitset. The wildcard set is an empty negated set. Negated sets iterate over,
+ * and report the size of, the Materials they actually contain.
+ *
+ * This replaces NegatedHashSet and WildcardHashSet, see copyOf for converting them.
+ */
+public class MaterialSet extends AbstractSet<Material> implements Cloneable {
+    private static final Material[] MATERIALS = Material.values();
+    private static final int WORDS = (MATERIALS.length + 63) >>> 6;
+
+    private long[] bits;
+    private boolean negated;
+    private int modCount = 0;
+
+    public MaterialSet() {
+        bits = new long[WORDS];
+    }
+
+    private MaterialSet(long[] bits, boolean negated) {
+        this.bits = bits;
+        this.negated = negated;
+    }
+
+    public static MaterialSet empty() {
+        return new MaterialSet();
+    }
+
+    /**
+     * @return A new set that contains every Material
+     */
+    public static MaterialSet wildcard() {
+        return new MaterialSet(new long[WORDS], true);
+    }
+
+    public static MaterialSet of(Material... materials) {
+        MaterialSet set = new MaterialSet();
+        for (Material material : materials) {
+            set.add(material);
+        }
+        return set;
+    }
+
+    /**
+     * Copy any collection of Materials into a new MaterialSet.
+     *
+     * NegatedHashSet and WildcardHashSet keep their meaning, rather than being
+     * copied as the plain set of elements they hold.
+     *
+     * @param materials The materials to copy, may be null
+     * @return A new set
+     */
+    public static MaterialSet copyOf(Collection<Material> materials) {
+        if (materials instanceof MaterialSet) {
+            return ((MaterialSet)materials).clone();
+        }
+        if (materials instanceof WildcardHashSet) {
+            return wildcard();
+        }
+        MaterialSet set = new MaterialSet();
+        if (materials == null) {
+            return set;
+        }
+        // NegatedHashSet iterates over the materials it excludes
+        for (Material material : materials) {
+            if (material != null) {
+                set.setBit(material.ordinal());
+            }
+        }
+        set.negated = materials instanceof NegatedHashSet;
+        return set;
+    }
+
+    /**
+     * Parse a comma-separated list of materials.
+     *
+     * "*" includes every material, and a material prefixed with "!" is excluded. A list
+     * of only exclusions contains every material except those listed.
+     *
+     * @param csv The list to parse
+     * @return A new set
+     */
+    public static MaterialSet parse(String csv) {
+        if (csv == null) return new MaterialSet();
+        return parse(Arrays.asList(StringUtils.split(csv, ',')));
+    }
+
+    public static MaterialSet parse(List<String> names) {
+        MaterialSet included = new MaterialSet();
+        MaterialSet excluded = null;
+        boolean all = false;
+        for (String name : names) {
+            name = name.trim();
+            if (name.equals("*")) {
+                all = true;
+                continue;
+            }
+            boolean exclude = name.startsWith("!");
+            if (exclude) {
+                name = name.substring(1);
+            }
+            Material material = ConfigurationUtils.toMaterial(name);
+            if (material == null) continue;
+            if (exclude) {
+                if (excluded == null) excluded = new MaterialSet();
+                excluded.add(material);
+            } else {
+                included.add(material);
+            }
+        }
+        if (all || (excluded != null && included.isEmpty())) {
+            included = wildcard();
+        }
+        if (excluded != null) {
+            included.removeAll(excluded);
+        }
+        return included;
+    }
+
+    /**
+     * Read a material set from configuration, either a list or a comma-separated string.
+     *
+     * @param node The configuration to read from
+     * @param key The key to read
+     * @return A new set, or null if the key is not present
+     */
+    public static MaterialSet fromConfig(ConfigurationSection node, String key) {
+        if (!node.contains(key)) return null;
+        if (node.isList(key)) {
+            return parse(node.getStringList(key));
+        }
+        return parse(node.getString(key));
+    }
+
+    private void setBit(int ordinal) {
+        bits[ordinal >>> 6] |= 1L << ordinal;
+    }
+
+    private boolean getBit(int ordinal) {
+        return (bits[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+
+    public boolean contains(Material material) {
+        return material != null && (getBit(material.ordinal()) != negated);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Material && contains((Material)o);
+    }
+
+    @Override
+    public boolean add(Material material) {
+        if (material == null || contains(material)) return false;
+        bits[material.ordinal() >>> 6] ^= 1L << material.ordinal();
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) return false;
+        int ordinal = ((Material)o).ordinal();
+        bits[ordinal >>> 6] ^= 1L << ordinal;
+        modCount++;
+        return true;
+    }
+
+    public boolean isNegated() {
+        return negated;
+    }
+
+    public boolean isWildcard() {
+        if (!negated) return false;
+        for (long word : bits) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return negated ? MATERIALS.length - count : count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(bits, 0);
+        negated = false;
+        modCount++;
+    }
+
+    private static MaterialSet toMaterialSet(Collection<?> collection) {
+        if (collection instanceof MaterialSet) {
+            return (MaterialSet)collection;
+        }
+        MaterialSet set = new MaterialSet();
+        for (Object o : collection) {
+            if (o instanceof Material) {
+                set.setBit(((Material)o).ordinal());
+            }
+        }
+        set.negated = collection instanceof NegatedHashSet;
+        if (collection instanceof WildcardHashSet) {
+            set = wildcard();
+        }
+        return set;
+    }
+
+    private boolean replaceWith(long[] newBits, boolean newNegated) {
+        boolean changed = newNegated != negated || !Arrays.equals(newBits, bits);
+        bits = newBits;
+        negated = newNegated;
+        if (changed) modCount++;
+        return changed;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Material> collection) {
+        MaterialSet other = toMaterialSet(collection);
+        long[] result = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            long a = bits[i];
+            long b = other.bits[i];
+            if (!negated) {
+                result[i] = other.negated ? b & ~a : a | b;
+            } else {
+                result[i] = other.negated ? a & b : a & ~b;
+            }
+        }
+        return replaceWith(result, negated || other.negated);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> collection) {
+        MaterialSet other = toMaterialSet(collection);
+        long[] result = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            long a = bits[i];
+            long b = other.bits[i];
+            if (!negated) {
+                result[i] = other.negated ? a & ~b : a & b;
+            } else {
+                result[i] = other.negated ? a | b : b & ~a;
+            }
+        }
+        return replaceWith(result, negated && other.negated);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> collection) {
+        return retainAll(toMaterialSet(collection).negate());
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> collection) {
+        if (collection instanceof MaterialSet) {
+            return ((MaterialSet)collection).intersect(negate()).isEmpty();
+        }
+        return super.containsAll(collection);
+    }
+
+    /**
+     * @param other The set to combine with
+     * @return A new set containing every Material in either set
+     */
+    public MaterialSet union(Collection<Material> other) {
+        MaterialSet result = clone();
+        result.addAll(other);
+        return result;
+    }
+
+    /**
+     * @param other The set to combine with
+     * @return A new set containing the Materials in both sets
+     */
+    public MaterialSet intersect(Collection<Material> other) {
+        MaterialSet result = clone();
+        result.retainAll(other);
+        return result;
+    }
+
+    /**
+     * @return A new set containing every Material not in this one
+     */
+    public MaterialSet negate() {
+        return new MaterialSet(bits.clone(), !negated);
+    }
+
+    @Override
+    public MaterialSet clone() {
+        return new MaterialSet(bits.clone(), negated);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof MaterialSet) {
+            MaterialSet other = (MaterialSet)o;
+            return negated == other.negated && Arrays.equals(bits, other.bits);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public Iterator<Material> iterator() {
+        return new Iterator<Material>() {
+            private int expectedModCount = modCount;
+            private int next = advance(0);
+            private int current = -1;
+
+            private int advance(int ordinal) {
+                while (ordinal < MATERIALS.length && getBit(ordinal) == negated) {
+                    ordinal++;
+                }
+                return ordinal;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < MATERIALS.length;
+            }
+
+            @Override
+            public Material next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= MATERIALS.length) {
+                    throw new NoSuchElementException();
+                }
+                current = next;
+                next = advance(next + 1);
+                return MATERIALS[current];
+            }
+
+            @Override
+            public void remove() {
+                if (current < 0) {
+                    throw new IllegalStateException();
+                }
+                MaterialSet.this.remove(MATERIALS[current]);
+                expectedModCount = modCount;
+                current = -1;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        if (isWildcard()) return "*";
+        StringBuilder builder = new StringBuilder();
+        MaterialSet listed = negated ? negate() : this;
+        for (Material material : listed) {
+            if (builder.length() > 0) builder.append(',');
+            if (negated) builder.append('!');
+            builder.append(material.name().toLowerCase());
+        }
+        return builder.toString();
+    }
+}
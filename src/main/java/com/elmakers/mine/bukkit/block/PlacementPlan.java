@@ -0,0 +1,222 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.elmakers.mine.bukkit.utility.Base64Coder;
+
+/**
+ * An immutable list of block placements: positions in one world, each with the
+ * material and data to place there.
+ *
+ * Plans are put together with a Builder, which may run off the main thread, and
+ * applied later on the main thread. Placements are kept in the order they were added.
+ *
+ * Plans can be encoded from any position onward, so the unapplied part of a plan
+ * can be saved and picked up again later. Targets are saved by material key, so
+ * tile entity data that the key does not cover is lost.
+ */
+public final class PlacementPlan {
+    private static final int VERSION = 1;
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    private final String worldName;
+    private final long[] blockIds;
+    private final MaterialAndData[] targets;
+
+    private PlacementPlan(String worldName, long[] blockIds, MaterialAndData[] targets) {
+        this.worldName = worldName;
+        this.blockIds = blockIds;
+        this.targets = targets;
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public int size() {
+        return blockIds.length;
+    }
+
+    public boolean isEmpty() {
+        return blockIds.length == 0;
+    }
+
+    /**
+     * @return The BlockKey id of a placement
+     */
+    public long getBlockId(int index) {
+        return blockIds[index];
+    }
+
+    /**
+     * @return The state to place, which must not be modified
+     */
+    public MaterialAndData getTarget(int index) {
+        return targets[index];
+    }
+
+    /**
+     * Encode the placements from a position onward.
+     *
+     * Positions are saved as coordinates, since world indices do not survive a restart.
+     *
+     * @param from The first placement to encode
+     * @return The encoded plan
+     */
+    public String encodeString(int from) throws IOException {
+        from = Math.max(0, Math.min(from, blockIds.length));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(VERSION);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        out.writeUTF(worldName);
+
+        // Targets are shared between runs of placements, so save each once
+        Map<MaterialAndData, Integer> palette = new IdentityHashMap<MaterialAndData, Integer>();
+        List<String> keys = new ArrayList<String>();
+        int[] indices = new int[blockIds.length - from];
+        for (int i = from; i < blockIds.length; i++) {
+            Integer index = palette.get(targets[i]);
+            if (index == null) {
+                index = keys.size();
+                palette.put(targets[i], index);
+                keys.add(targets[i].getKey());
+            }
+            indices[i - from] = index;
+        }
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            out.writeUTF(key);
+        }
+        out.writeInt(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            long blockId = blockIds[from + i];
+            out.writeInt(BlockKey.getX(blockId));
+            out.writeShort(BlockKey.getY(blockId));
+            out.writeInt(BlockKey.getZ(blockId));
+            out.writeInt(indices[i]);
+        }
+        out.close();
+        return new String(Base64Coder.encode(bytes.toByteArray()));
+    }
+
+    public static PlacementPlan decodeString(String encoded) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Base64Coder.decode(encoded);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid plan encoding: " + ex.getMessage());
+        }
+        if (bytes.length < 1 || bytes[0] != VERSION) {
+            throw new IOException("Unknown plan data version");
+        }
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1)));
+        try {
+            int worldIndex = WorldIndex.getIndex(in.readUTF());
+            String worldName = WorldIndex.getWorldName(worldIndex);
+            MaterialAndData[] palette = new MaterialAndData[readCount(in, MAX_TABLE_SIZE, "palette")];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = new MaterialAndData(in.readUTF());
+            }
+
+            // Arrays grow as placements are read, so a bad count can't allocate them all up front
+            int size = readCount(in, Integer.MAX_VALUE, "placement count");
+            long[] blockIds = new long[Math.min(size, 4096)];
+            MaterialAndData[] targets = new MaterialAndData[blockIds.length];
+            for (int i = 0; i < size; i++) {
+                if (i == blockIds.length) {
+                    blockIds = Arrays.copyOf(blockIds, Math.min(size, i * 2));
+                    targets = Arrays.copyOf(targets, blockIds.length);
+                }
+                int x = in.readInt();
+                int y = in.readShort();
+                int z = in.readInt();
+                blockIds[i] = BlockKey.toKey(worldIndex, x, y, z);
+                targets[i] = palette[readIndex(in, palette.length, "palette")];
+            }
+            return new PlacementPlan(worldName, blockIds, targets);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readCount(DataInputStream in, int limit, String name) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > limit) {
+            throw new IOException("Invalid " + name + " size in plan data: " + count);
+        }
+        return count;
+    }
+
+    private static int readIndex(DataInputStream in, int size, String name) throws IOException {
+        int index = in.readInt();
+        if (index < 0 || index >= size) {
+            throw new IOException("Invalid " + name + " index in plan data: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Collects placements for a plan. Not thread safe, each builder should only be
+     * used by one thread at a time.
+     */
+    public static class Builder {
+        private final String worldName;
+        private final int worldIndex;
+        private long[] blockIds = new long[64];
+        private MaterialAndData[] targets = new MaterialAndData[64];
+        private int size = 0;
+
+        // Consecutive placements of the same target share one copy
+        private MaterialAndData lastSource;
+        private MaterialAndData lastCopy;
+
+        public Builder(String worldName) {
+            this.worldName = worldName;
+            this.worldIndex = WorldIndex.getIndex(worldName);
+        }
+
+        /**
+         * Add a placement. The target is copied, so may be changed afterward.
+         *
+         * @param x The block X coordinate
+         * @param y The block Y coordinate
+         * @param z The block Z coordinate
+         * @param target The state to place there
+         * @return This builder
+         */
+        public Builder add(int x, int y, int z, MaterialAndData target) {
+            if (target == null) return this;
+            if (target != lastSource || lastCopy == null || !lastCopy.equals(target)) {
+                lastSource = target;
+                lastCopy = new MaterialAndData(target);
+            }
+            if (size == blockIds.length) {
+                blockIds = Arrays.copyOf(blockIds, size * 2);
+                targets = Arrays.copyOf(targets, size * 2);
+            }
+            blockIds[size] = BlockKey.toKey(worldIndex, x, y, z);
+            targets[size] = lastCopy;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public PlacementPlan build() {
+            return new PlacementPlan(worldName, Arrays.copyOf(blockIds, size), Arrays.copyOf(targets, size));
+        }
+    }
+}
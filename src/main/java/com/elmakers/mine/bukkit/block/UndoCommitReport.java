@@ -0,0 +1,72 @@
+package com.elmakers.mine.bukkit.block;
+
+/**
+ * Timing and counts from committing every undo record at once.
+ *
+ * These are returned by UndoList.commitAll.
+ */
+public class UndoCommitReport {
+    private final int worlds;
+    private final int chunks;
+    private final int blocks;
+    private final int layers;
+    private final long planNanos;
+    private final long commitNanos;
+    private final boolean parallel;
+
+    public UndoCommitReport(int worlds, int chunks, int blocks, int layers, long planNanos, long commitNanos, boolean parallel) {
+        this.worlds = worlds;
+        this.chunks = chunks;
+        this.blocks = blocks;
+        this.layers = layers;
+        this.planNanos = planNanos;
+        this.commitNanos = commitNanos;
+        this.parallel = parallel;
+    }
+
+    public int getWorlds() {
+        return worlds;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return The number of distinct modified block positions committed
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The number of undo records committed, counting every layer of overlapping changes
+     */
+    public int getLayers() {
+        return layers;
+    }
+
+    /**
+     * @return Time spent grouping records by chunk, which may have been spread over several threads
+     */
+    public long getPlanNanos() {
+        return planNanos;
+    }
+
+    /**
+     * @return Time spent committing records on the calling thread
+     */
+    public long getCommitNanos() {
+        return commitNanos;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    @Override
+    public String toString() {
+        return "Committed " + blocks + " blocks (" + layers + " records) in " + chunks + " chunks across " + worlds + " worlds, planned in "
+            + (planNanos / 1000000) + "ms" + (parallel ? " (parallel)" : "") + ", committed in " + (commitNanos / 1000000) + "ms";
+    }
+}
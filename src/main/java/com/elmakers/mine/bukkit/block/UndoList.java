@@ -1,23 +1,35 @@
 package com.elmakers.mine.bukkit.block;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.elmakers.mine.bukkit.api.action.CastContext;
 import com.elmakers.mine.bukkit.api.batch.Batch;
 import com.elmakers.mine.bukkit.api.spell.Spell;
+import com.elmakers.mine.bukkit.utility.LongDoubleHashMap;
+import com.elmakers.mine.bukkit.utility.LongHashMap;
+import com.elmakers.mine.bukkit.utility.LongHashSet;
 import com.elmakers.mine.bukkit.utility.NMSUtils;
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
@@ -30,9 +42,11 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.metadata.FixedMetadataValue;
 import org.bukkit.metadata.MetadataValue;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.util.Vector;
 
 import com.elmakers.mine.bukkit.api.block.BlockData;
 import com.elmakers.mine.bukkit.api.magic.Mage;
+import com.elmakers.mine.bukkit.batch.PruneBatch;
 import com.elmakers.mine.bukkit.batch.UndoBatch;
 import com.elmakers.mine.bukkit.entity.EntityData;
 
@@ -51,17 +65,21 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     public static Set<Material>         attachablesWall;
     public static Set<Material>         attachablesDouble;
 
-    protected static Map<Long, BlockData> modified = new HashMap<Long, BlockData>();
-    protected static Map<Long, BlockData> watching = new HashMap<Long, BlockData>();
-    protected static Map<Long, Double> reflective = new HashMap<Long, Double>();
-    protected static Map<Long, Double> breakable = new HashMap<Long, Double>();
-    protected static BlockComparator blockComparator = new BlockComparator();
+    protected static LongHashMap<BlockData> modified = new LongHashMap<BlockData>();
+    protected static LongHashMap<BlockData> watching = new LongHashMap<BlockData>();
+    protected static LongDoubleHashMap reflective = new LongDoubleHashMap();
+    protected static LongDoubleHashMap breakable = new LongDoubleHashMap();
 
-    protected Map<Long, BlockData>  attached;
+    // Secondary indices of the modified and watching maps, by chunk
+    protected static LongHashMap<LongHashMap<BlockData>> modifiedChunks = new LongHashMap<LongHashMap<BlockData>>();
+    protected static LongHashMap<LongHashMap<BlockData>> watchingChunks = new LongHashMap<LongHashMap<BlockData>>();
+
+    protected LongHashMap<BlockData> attached;
     private boolean                 loading = false;
 
     protected Set<Entity> 	                entities;
     protected List<Runnable>				runnables;
+    protected List<VolumeSnapshot>          volumes;
     protected HashMap<UUID, EntityData> 	modifiedEntities;
 
     protected WeakReference<CastContext>    context;
@@ -70,8 +88,10 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     protected Plugin		   	    plugin;
 
     protected boolean               undone              = false;
+    protected boolean               evicted             = false;
     protected int                  	timeToLive          = 0;
     protected boolean               applyPhysics        = false;
+    protected boolean               deferPhysics        = false;
 
     protected boolean				bypass		 	    = false;
     protected final long			createdTime;
@@ -83,6 +103,10 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     protected Batch                 batch;
     protected UndoQueue             undoQueue;
 
+    // Order in which lists joined an undo queue, newest highest
+    private static long             nextSequence = 0;
+    protected long                  sequence = 0;
+
     // Doubly-linked list
     protected UndoList              next;
     protected UndoList              previous;
@@ -94,6 +118,22 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     private Set<EntityType>         undoEntityTypes = null;
     protected boolean               undoBreakable = false;
     protected boolean               undoReflective = false;
+    protected boolean               undoByChunk = false;
+    protected boolean               deferAttachables = false;
+
+    // Chunks in the order they will be undone, set by sortByChunk
+    protected long[]                undoChunks = null;
+
+    // Set while this list's blocks are in the UndoMemoryGovernor's spill file
+    private boolean                 spilled = false;
+    private int                     spilledSize = 0;
+
+    // Records dropped by commitChunk, still in blockList until the next pass over it
+    private Map<BlockData, BlockData> forgotten = null;
+
+    // Kept up to date as the list changes, and passed on to the UndoQueue and UndoMetrics
+    private long                    estimatedMemory = 0;
+    private long                    volumeMemory = 0;
 
     public UndoList(Mage mage, String name)
     {
@@ -115,6 +155,10 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         }
     }
 
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
     public void setBatch(Batch batch)
     {
         this.batch = batch;
@@ -132,19 +176,25 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     {
         return (
             (blockList == null || blockList.isEmpty())
+        &&  !spilled
         && 	(entities == null || entities.isEmpty())
-        && 	(runnables == null || runnables.isEmpty()));
+        && 	(runnables == null || runnables.isEmpty())
+        &&  (volumes == null || volumes.isEmpty()));
     }
 
     public void setScheduleUndo(int ttl)
     {
         timeToLive = ttl;
+        if (ttl <= 0) {
+            UndoScheduler.cancel(this);
+        }
         updateScheduledUndo();
     }
 
     public void updateScheduledUndo() {
         if (timeToLive > 0) {
             scheduledTime = System.currentTimeMillis() + timeToLive;
+            UndoScheduler.schedule(this);
         }
     }
 
@@ -165,13 +215,13 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
             BlockData attachedBlock = attached.remove(blockData.getId());
             if (attachedBlock != null) {
                 removeFromWatched(attachedBlock);
-
+                updateMemory();
             }
         }
         register(blockData);
         blockData.setUndoList(this);
 
-        if (loading) return true;
+        if (loading || isDeferringAttachables()) return true;
 
         addAttachable(blockData, BlockFace.NORTH, attachablesWall);
         addAttachable(blockData, BlockFace.SOUTH, attachablesWall);
@@ -186,8 +236,12 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     protected boolean addAttachable(BlockData block, BlockFace direction, Set<Material> materials)
     {
         Block testBlock = block.getBlock().getRelative(direction);
-        Long blockId = com.elmakers.mine.bukkit.block.BlockData.getBlockId(testBlock);
+        long blockId = com.elmakers.mine.bukkit.block.BlockData.getBlockId(testBlock);
+        return addAttachable(testBlock, blockId, direction, materials);
+    }
 
+    protected boolean addAttachable(Block testBlock, long blockId, BlockFace direction, Set<Material> materials)
+    {
         // This gets called recursively, so don't re-process anything
         if (blockIdMap != null && blockIdMap.contains(blockId))
         {
@@ -207,9 +261,10 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
                 newBlock.setUndoList(this);
                 if (attached == null)
                 {
-                    attached = new HashMap<Long, BlockData>();
+                    attached = new LongHashMap<BlockData>();
                 }
                 attached.put(blockId, newBlock);
+                updateMemory();
                 if (attachablesDouble != null && attachablesDouble.contains(material))
                 {
                     if (direction != BlockFace.UP)
@@ -227,6 +282,76 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         return false;
     }
 
+    /**
+     * Whether attachable blocks are found once, by scanAttachables, rather than as each block is added.
+     *
+     * This only applies to lists that don't apply physics, since with physics on an
+     * attached block may break off before the scan gets to it.
+     *
+     * @return true if attachable scanning is deferred
+     */
+    public boolean isDeferringAttachables()
+    {
+        return deferAttachables && !applyPhysics;
+    }
+
+    public void setDeferAttachables(boolean defer)
+    {
+        deferAttachables = defer;
+    }
+
+    /**
+     * Find and watch attachable blocks next to every block in this list.
+     *
+     * This registers the same blocks as add does when not deferring, but visits each
+     * neighbor once, skips neighbors that are in this list, and reads the world a chunk
+     * at a time. Neighbors in unloaded chunks are skipped.
+     */
+    public void scanAttachables()
+    {
+        if (blockIdMap == null || blockIdMap.isEmpty()) return;
+
+        long[] order = blockIdMap.toArray();
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = BlockKey.toChunkOrder(order[i]);
+        }
+        Arrays.sort(order);
+
+        // Sides and tops are checked against different material sets, so are tracked separately
+        LongHashSet checkedSides = new LongHashSet();
+        LongHashSet checkedVertical = new LongHashSet();
+        World world = null;
+        int worldIndex = -1;
+        for (long orderKey : order)
+        {
+            long blockId = BlockKey.fromChunkOrder(orderKey);
+            if (BlockKey.getWorldIndex(blockId) != worldIndex)
+            {
+                worldIndex = BlockKey.getWorldIndex(blockId);
+                world = WorldIndex.getWorld(worldIndex);
+            }
+            if (world == null) continue;
+
+            int x = BlockKey.getX(blockId);
+            int y = BlockKey.getY(blockId);
+            int z = BlockKey.getZ(blockId);
+            for (BlockFace face : com.elmakers.mine.bukkit.block.BlockData.FACES)
+            {
+                boolean vertical = face == BlockFace.UP || face == BlockFace.DOWN;
+                int testX = x + face.getModX();
+                int testY = y + face.getModY();
+                int testZ = z + face.getModZ();
+                long testId = BlockKey.toKey(worldIndex, testX, testY, testZ);
+                if (blockIdMap.contains(testId) || (attached != null && attached.containsKey(testId))) continue;
+                if (!(vertical ? checkedVertical : checkedSides).add(testId)) continue;
+                if (!world.isChunkLoaded(testX >> 4, testZ >> 4)) continue;
+
+                addAttachable(world.getBlockAt(testX, testY, testZ), testId, face, vertical ? attachables : attachablesWall);
+            }
+        }
+    }
+
     public static BlockData register(Block block)
     {
         BlockData blockData = new com.elmakers.mine.bukkit.block.BlockData(block);
@@ -239,22 +364,137 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         BlockData priorState = modified.get(blockData.getId());
         if (priorState != null)
         {
-            priorState.setNextState(blockData);
             blockData.setPriorState(priorState);
         }
 
-        modified.put(blockData.getId(), blockData);
+        setModified(blockData.getId(), blockData);
+    }
+
+    /**
+     * Find the original state of a block, from before any change that can still be undone.
+     *
+     * @param block The block to check
+     * @return The oldest undo record for this block, or null if it is not modified
+     */
+    public static BlockData getOriginalState(Block block)
+    {
+        BlockData top = modified.get(BlockKey.toKey(block));
+        if (top == null) return null;
+        if (top instanceof com.elmakers.mine.bukkit.block.BlockData)
+        {
+            BlockStateStack stack = ((com.elmakers.mine.bukkit.block.BlockData)top).getStateStack();
+            if (stack != null)
+            {
+                return stack.getBottom();
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Get every undo record held for a block, oldest first.
+     *
+     * @param block The block to check
+     * @return The undo records, empty if the block is not modified
+     */
+    public static List<BlockData> getHistory(Block block)
+    {
+        return getLayers(modified.get(BlockKey.toKey(block)));
+    }
+
+    protected static List<BlockData> getLayers(BlockData top)
+    {
+        if (top == null) return Collections.emptyList();
+        if (top instanceof com.elmakers.mine.bukkit.block.BlockData)
+        {
+            BlockStateStack stack = ((com.elmakers.mine.bukkit.block.BlockData)top).getStateStack();
+            if (stack != null)
+            {
+                return new ArrayList<BlockData>(stack.getEntries());
+            }
+        }
+        return Collections.singletonList(top);
+    }
+
+    protected static int getStackDepth(BlockData top)
+    {
+        if (top instanceof com.elmakers.mine.bukkit.block.BlockData)
+        {
+            return ((com.elmakers.mine.bukkit.block.BlockData)top).getStackDepth();
+        }
+        return 1;
+    }
+
+    protected static void setModified(long blockId, BlockData blockData)
+    {
+        modified.put(blockId, blockData);
+        long chunkId = BlockKey.getChunkKey(blockId);
+        LongHashMap<BlockData> chunk = modifiedChunks.get(chunkId);
+        if (chunk == null)
+        {
+            chunk = new LongHashMap<BlockData>();
+            modifiedChunks.put(chunkId, chunk);
+        }
+        chunk.put(blockId, blockData);
+    }
+
+    protected static void clearModified(long blockId)
+    {
+        if (modified.remove(blockId) == null) return;
+        long chunkId = BlockKey.getChunkKey(blockId);
+        LongHashMap<BlockData> chunk = modifiedChunks.get(chunkId);
+        if (chunk != null)
+        {
+            chunk.remove(blockId);
+            if (chunk.isEmpty())
+            {
+                modifiedChunks.remove(chunkId);
+            }
+        }
     }
 
     public static void registerWatched(BlockData blockData)
     {
-        watching.put(blockData.getId(), blockData);
+        setWatched(blockData.getId(), blockData);
+    }
+
+    protected static void setWatched(long blockId, BlockData blockData)
+    {
+        watching.put(blockId, blockData);
+        long chunkId = BlockKey.getChunkKey(blockId);
+        LongHashMap<BlockData> chunk = watchingChunks.get(chunkId);
+        if (chunk == null)
+        {
+            chunk = new LongHashMap<BlockData>();
+            watchingChunks.put(chunkId, chunk);
+        }
+        chunk.put(blockId, blockData);
+    }
+
+    protected static void clearWatched(long blockId)
+    {
+        if (watching.remove(blockId) == null) return;
+        long chunkId = BlockKey.getChunkKey(blockId);
+        LongHashMap<BlockData> chunk = watchingChunks.get(chunkId);
+        if (chunk != null)
+        {
+            chunk.remove(blockId);
+            if (chunk.isEmpty())
+            {
+                watchingChunks.remove(chunkId);
+            }
+        }
     }
 
     public void commit()
     {
         unlink();
+        UndoScheduler.cancel(this);
         unregisterAttached();
+        volumes = null;
+        volumeMemory = 0;
+        discardSpill();
+        purgeForgotten();
         if (blockList == null) return;
 
         for (BlockData block : blockList)
@@ -264,13 +504,255 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         clear();
     }
 
+    /**
+     * Detach this list from its undo queue, ahead of being committed by a CommitBatch.
+     *
+     * An evicted list can no longer be undone, but its blocks stay registered until
+     * they are committed.
+     */
+    public void evict()
+    {
+        unlink();
+        UndoScheduler.cancel(this);
+        discardSpill();
+        evicted = true;
+    }
+
+    public boolean isEvicted()
+    {
+        return evicted;
+    }
+
+    /**
+     * Commit a run of this list's blocks, without removing them from the list.
+     *
+     * Blocks sorted by chunk are committed a chunk at a time, looking up each chunk's
+     * registry once. Blocks no longer in this list are skipped.
+     *
+     * @param list The list the blocks belong to
+     * @param blocks The blocks to commit
+     * @param from The index of the first block to commit
+     * @param to The index after the last block to commit
+     * @return The number of blocks committed
+     */
+    public static int commit(UndoList list, BlockData[] blocks, int from, int to)
+    {
+        int committed = 0;
+        long chunkId = 0;
+        LongHashMap<BlockData> chunk = null;
+        for (int i = from; i < to; i++)
+        {
+            BlockData block = blocks[i];
+            long blockId = block.getId();
+            if (!list.containsKey(blockId)) continue;
+
+            long blockChunkId = BlockKey.getChunkKey(blockId);
+            if (chunk == null || blockChunkId != chunkId)
+            {
+                removeIfEmpty(chunkId, chunk);
+                chunkId = blockChunkId;
+                chunk = modifiedChunks.get(chunkId);
+            }
+            if (modified.get(blockId) == block)
+            {
+                modified.remove(blockId);
+                if (chunk != null)
+                {
+                    chunk.remove(blockId);
+                }
+            }
+            block.commit();
+            reflective.removeKey(blockId);
+            breakable.removeKey(blockId);
+            UndoMemoryGovernor.committed(blockId);
+            committed++;
+        }
+        removeIfEmpty(chunkId, chunk);
+        return committed;
+    }
+
+    private static void removeIfEmpty(long chunkId, LongHashMap<BlockData> chunk)
+    {
+        if (chunk != null && chunk.isEmpty() && modifiedChunks.get(chunkId) == chunk)
+        {
+            modifiedChunks.remove(chunkId);
+        }
+    }
+
     public static void commitAll()
     {
-        Collection<BlockData> blocks = modified.values();
+        commitAll(false);
+    }
+
+    /**
+     * The records in one chunk that need committing, gathered by commitAll.
+     */
+    private static class ChunkCommit
+    {
+        private final LongHashMap<BlockData> chunk;
+        private BlockStateStack[] stacks;
+        private BlockData[] others;
+        private int layers;
+
+        private ChunkCommit(LongHashMap<BlockData> chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        private void plan()
+        {
+            List<BlockStateStack> stackList = new ArrayList<BlockStateStack>();
+            List<BlockData> otherList = null;
+            layers = 0;
+            for (BlockData block : chunk.values())
+            {
+                if (block instanceof com.elmakers.mine.bukkit.block.BlockData)
+                {
+                    // A single record has nothing below it to commit
+                    BlockStateStack stack = ((com.elmakers.mine.bukkit.block.BlockData)block).getStateStack();
+                    if (stack != null)
+                    {
+                        stackList.add(stack);
+                        layers += stack.size();
+                    }
+                    else
+                    {
+                        layers++;
+                    }
+                }
+                else
+                {
+                    if (otherList == null) otherList = new ArrayList<BlockData>();
+                    otherList.add(block);
+                    layers++;
+                }
+            }
+            stacks = stackList.toArray(new BlockStateStack[stackList.size()]);
+            others = otherList == null ? null : otherList.toArray(new BlockData[otherList.size()]);
+        }
+
+        private void commit()
+        {
+            for (BlockStateStack stack : stacks)
+            {
+                stack.commitTop();
+            }
+            if (others != null)
+            {
+                for (BlockData block : others)
+                {
+                    block.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit every undo record, such as on shutdown or reload.
+     *
+     * Records are gathered a chunk at a time, worlds and chunks in order, and each
+     * layered position is committed in a single pass over its stack. Nothing is read
+     * from the world.
+     *
+     * Gathering only reads the undo registry, so it can be spread over several threads
+     * while the calling thread waits. The registry must not be changed from other
+     * threads while this runs.
+     *
+     * @param parallel Whether to gather records on worker threads
+     * @return A report of what was committed and how long it took
+     */
+    public static UndoCommitReport commitAll(boolean parallel)
+    {
+        long startTime = System.nanoTime();
+        long[] chunkIds = modifiedChunks.keys();
+        for (int i = 0; i < chunkIds.length; i++)
+        {
+            chunkIds[i] = BlockKey.toChunkOrder(chunkIds[i]);
+        }
+        Arrays.sort(chunkIds);
+
+        final ChunkCommit[] commits = new ChunkCommit[chunkIds.length];
+        int worlds = 0;
+        int lastWorld = -1;
+        int blocks = 0;
+        for (int i = 0; i < chunkIds.length; i++)
+        {
+            long chunkId = BlockKey.fromChunkOrder(chunkIds[i]);
+            if (BlockKey.getWorldIndex(chunkId) != lastWorld)
+            {
+                lastWorld = BlockKey.getWorldIndex(chunkId);
+                worlds++;
+            }
+            commits[i] = new ChunkCommit(modifiedChunks.get(chunkId));
+            blocks += commits[i].chunk.size();
+        }
+
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        boolean planned = false;
+        parallel = parallel && threads > 1 && commits.length >= 64;
+        if (parallel)
+        {
+            planned = planParallel(commits, threads);
+            parallel = planned;
+        }
+        if (!planned)
+        {
+            for (ChunkCommit commit : commits)
+            {
+                commit.plan();
+            }
+        }
+        long planTime = System.nanoTime();
+
+        int layers = 0;
+        for (ChunkCommit commit : commits)
+        {
+            commit.commit();
+            layers += commit.layers;
+        }
         modified.clear();
+        modifiedChunks.clear();
         watching.clear();
-        for (BlockData block : blocks) {
-            block.commit();
+        watchingChunks.clear();
+        reflective.clear();
+        breakable.clear();
+        UndoMemoryGovernor.close();
+
+        return new UndoCommitReport(worlds, commits.length, blocks, layers, planTime - startTime, System.nanoTime() - planTime, parallel);
+    }
+
+    private static boolean planParallel(final ChunkCommit[] commits, final int threads)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < threads; thread++)
+            {
+                final int first = thread;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = first; i < commits.length; i += threads) {
+                            commits[i].plan();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+            return true;
+        }
+        catch (Exception ex)
+        {
+            Bukkit.getLogger().warning("Failed to plan undo commit in parallel, falling back to a single thread: " + ex.getMessage());
+            return false;
+        }
+        finally
+        {
+            executor.shutdown();
         }
     }
 
@@ -279,11 +761,240 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         BlockData currentState = modified.get(block.getId());
         if (currentState == block)
         {
-            modified.remove(block.getId());
+            clearModified(block.getId());
         }
         block.commit();
-        reflective.remove(block.getId());
-        breakable.remove(block.getId());
+        reflective.removeKey(block.getId());
+        breakable.removeKey(block.getId());
+        UndoMemoryGovernor.committed(block.getId());
+    }
+
+    /**
+     * Commit every undo record in a chunk, such as when the chunk is unloading.
+     *
+     * Records are removed from the UndoLists that own them, without reading
+     * anything back from the world. Watched attachables in the chunk are dropped
+     * along with them.
+     *
+     * @param world The world the chunk is in
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return The number of records that were committed, counting every layer
+     */
+    public static int commitChunk(World world, int chunkX, int chunkZ)
+    {
+        long chunkId = BlockKey.getChunkKey(WorldIndex.getIndex(world), chunkX, chunkZ);
+        LongHashMap<BlockData> watched = watchingChunks.remove(chunkId);
+        if (watched != null)
+        {
+            // Attachables are only watched, so drop them from the lists that found them
+            for (BlockData block : watched.values())
+            {
+                long blockId = block.getId();
+                watching.remove(blockId);
+                com.elmakers.mine.bukkit.api.block.BlockData layer = block;
+                while (layer != null)
+                {
+                    com.elmakers.mine.bukkit.api.block.BlockData prior = layer.getPriorState();
+                    com.elmakers.mine.bukkit.api.block.UndoList layerList = layer.getUndoList();
+                    if (layerList instanceof UndoList)
+                    {
+                        ((UndoList)layerList).forgetAttached(blockId);
+                    }
+                    layer.unlink();
+                    layer = prior;
+                }
+            }
+        }
+
+        LongHashMap<BlockData> chunk = modifiedChunks.remove(chunkId);
+        if (chunk == null) return 0;
+
+        int committed = 0;
+        for (BlockData block : chunk.values())
+        {
+            long blockId = block.getId();
+            modified.remove(blockId);
+            reflective.removeKey(blockId);
+            breakable.removeKey(blockId);
+            UndoMemoryGovernor.committed(blockId);
+
+            List<BlockData> layers = getLayers(block);
+            for (BlockData layer : layers)
+            {
+                com.elmakers.mine.bukkit.api.block.UndoList layerList = layer.getUndoList();
+                if (layerList instanceof UndoList)
+                {
+                    ((UndoList)layerList).forgetCommitted(layer);
+                }
+                committed++;
+            }
+            if (block instanceof com.elmakers.mine.bukkit.block.BlockData)
+            {
+                BlockStateStack stack = ((com.elmakers.mine.bukkit.block.BlockData)block).getStateStack();
+                if (stack != null)
+                {
+                    stack.clear();
+                }
+            }
+        }
+
+        return committed;
+    }
+
+    /**
+     * Drop a committed record from this list without scanning it.
+     *
+     * The record leaves the id index right away, and is removed from the list itself
+     * on the next pass over it, or once half the list has been dropped. Spilled lists
+     * are left alone, since the commit is already recorded against the spill.
+     *
+     * @param block The record to drop
+     */
+    private void forgetCommitted(BlockData block)
+    {
+        if (spilled || blockList == null) return;
+        if (forgotten == null)
+        {
+            forgotten = new IdentityHashMap<BlockData, BlockData>();
+        }
+        if (forgotten.put(block, block) != null) return;
+        blockIdMap.remove(block.getId());
+        modifiedTime = System.currentTimeMillis();
+        if (forgotten.size() * 2 >= blockList.size())
+        {
+            purgeForgotten();
+        }
+        else
+        {
+            updateMemory();
+        }
+    }
+
+    /**
+     * Remove any records dropped by forgetCommitted from the block list, in one pass.
+     */
+    private void purgeForgotten()
+    {
+        if (forgotten == null) return;
+        Map<BlockData, BlockData> dropped = forgotten;
+        forgotten = null;
+        if (blockList != null)
+        {
+            Iterator<BlockData> it = blockList.iterator();
+            while (it.hasNext())
+            {
+                if (dropped.containsKey(it.next()))
+                {
+                    it.remove();
+                }
+            }
+        }
+        updateMemory();
+    }
+
+    private void forgetAttached(long blockId)
+    {
+        if (attached != null && attached.remove(blockId) != null)
+        {
+            if (attached.isEmpty())
+            {
+                attached = null;
+            }
+            updateMemory();
+        }
+    }
+
+    /**
+     * Drop blocks from this list without undoing them or touching the registry.
+     *
+     * @param blockIds The ids of the blocks to drop
+     */
+    public void forget(LongHashSet blockIds)
+    {
+        restore();
+        if (blockList == null) return;
+        Iterator<BlockData> it = blockList.iterator();
+        while (it.hasNext())
+        {
+            long blockId = it.next().getId();
+            if (blockIds.contains(blockId))
+            {
+                it.remove();
+                blockIdMap.remove(blockId);
+            }
+        }
+        modifiedTime = System.currentTimeMillis();
+        updateMemory();
+    }
+
+    /**
+     * Collect the blocks in this list that fall inside an area.
+     *
+     * @param area The area to check
+     * @param blocks The list to add blocks to
+     * @return The number of blocks added
+     */
+    public int getBlocksInArea(BoundingBox area, List<BlockData> blocks)
+    {
+        if (this.area == null || !this.area.intersects(area)) return 0;
+        restore();
+        if (blockList == null) return 0;
+        int count = 0;
+        for (BlockData block : blockList)
+        {
+            if (area.contains(block.getPosition()))
+            {
+                blocks.add(block);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static Collection<BlockData> getModified(World world, int chunkX, int chunkZ)
+    {
+        long chunkId = BlockKey.getChunkKey(WorldIndex.getIndex(world), chunkX, chunkZ);
+        LongHashMap<BlockData> chunk = modifiedChunks.get(chunkId);
+        if (chunk == null) return Collections.<BlockData>emptyList();
+        return chunk.values();
+    }
+
+    public static ChunkUndoReport getChunkReport(long chunkId)
+    {
+        LongHashMap<BlockData> chunk = modifiedChunks.get(chunkId);
+        int blocks = chunk == null ? 0 : chunk.size();
+        int layers = 0;
+        if (chunk != null)
+        {
+            for (BlockData block : chunk.values())
+            {
+                layers += getStackDepth(block);
+            }
+        }
+        return new ChunkUndoReport(BlockKey.getWorldName(chunkId), BlockKey.getChunkX(chunkId), BlockKey.getChunkZ(chunkId),
+            blocks, layers, (long)layers * com.elmakers.mine.bukkit.block.BlockData.ESTIMATED_MEMORY);
+    }
+
+    public static ChunkUndoReport getChunkReport(World world, int chunkX, int chunkZ)
+    {
+        return getChunkReport(BlockKey.getChunkKey(WorldIndex.getIndex(world), chunkX, chunkZ));
+    }
+
+    /**
+     * Summarize the undo records held in every chunk.
+     *
+     * @return A report for each chunk with modified blocks, largest first
+     */
+    public static List<ChunkUndoReport> getChunkReport()
+    {
+        List<ChunkUndoReport> report = new ArrayList<ChunkUndoReport>(modifiedChunks.size());
+        for (long chunkId : modifiedChunks.keys())
+        {
+            report.add(getChunkReport(chunkId));
+        }
+        Collections.sort(report);
+        return report;
     }
 
     @Override
@@ -310,11 +1021,11 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         {
             if (priorState == null)
             {
-                modified.remove(block.getId());
+                clearModified(block.getId());
             }
             else
             {
-                modified.put(block.getId(), priorState);
+                setModified(block.getId(), priorState);
             }
         }
     }
@@ -331,11 +1042,11 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         {
             if (priorState == null)
             {
-                watching.remove(block.getId());
+                clearWatched(block.getId());
             }
             else
             {
-                watching.put(block.getId(), priorState);
+                setWatched(block.getId(), priorState);
             }
         }
     }
@@ -343,13 +1054,27 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     @Override
     public BlockData undoNext(boolean applyPhysics)
     {
+        return undoNext(applyPhysics, null);
+    }
+
+    /**
+     * Undo the next block in this list.
+     *
+     * @param applyPhysics Whether to apply physics
+     * @param writes A pipeline to submit the block write to, or null to write it right away
+     * @return The block undone, or null if there was none or its chunk is loading
+     */
+    public BlockData undoNext(boolean applyPhysics, BlockWritePipeline writes)
+    {
+        purgeForgotten();
         if (blockList.size() == 0) {
             return null;
         }
         BlockData blockData = blockList.removeFirst();
         BlockState currentState = blockData.getBlock().getState();
-        if (undo(blockData, applyPhysics)) {
+        if (undo(blockData, applyPhysics, writes)) {
             blockIdMap.remove(blockData.getId());
+            updateMemory();
             if (consumed && currentState.getType() != Material.AIR && owner != null) {
                 owner.giveItem(new ItemStack(currentState.getType(), 1, currentState.getRawData()));
             }
@@ -361,18 +1086,26 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     }
 
     public boolean undo(BlockData undoBlock, boolean applyPhysics)
+    {
+        return undo(undoBlock, applyPhysics, null);
+    }
+
+    public boolean undo(BlockData undoBlock, boolean applyPhysics, BlockWritePipeline writes)
     {
         BlockData priorState = undoBlock.getPriorState();
 
         // Remove any tagged metadata
         if (undoBreakable) {
-            breakable.remove(undoBlock.getId());
+            breakable.removeKey(undoBlock.getId());
         }
         if (undoReflective) {
-            reflective.remove(undoBlock.getId());
+            reflective.removeKey(undoBlock.getId());
         }
 
-        if (undoBlock.undo(applyPhysics)) {
+        boolean undone = writes != null && undoBlock instanceof com.elmakers.mine.bukkit.block.BlockData
+            ? ((com.elmakers.mine.bukkit.block.BlockData)undoBlock).undo(writes)
+            : undoBlock.undo(applyPhysics);
+        if (undone) {
             removeFromModified(undoBlock, priorState);
             return true;
         }
@@ -407,6 +1140,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
                 }
                 modifiedEntities = null;
             }
+            updateMemory();
         }
     }
 
@@ -428,7 +1162,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     {
         undo(blocking, false);
 
-        if (isScheduled())
+        if (isScheduled() && owner != null)
         {
             owner.getController().cancelScheduledUndo(this);
         }
@@ -446,13 +1180,16 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
                 removeFromWatched(block);
             }
             attached = null;
+            updateMemory();
         }
     }
 
     public void undo(boolean blocking, boolean undoEntities)
     {
-        if (undone) return;
+        if (undone || evicted) return;
         undone = true;
+        UndoScheduler.cancel(this);
+        restore();
 
         if (batch != null && !batch.isFinished())
         {
@@ -478,9 +1215,10 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
                 runnable.run();
             }
             runnables = null;
+            updateMemory();
         }
 
-        if (blockList == null) {
+        if (blockList == null && volumes == null) {
             undoEntityEffects();
             return;
         }
@@ -506,16 +1244,136 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         name = node.getString("name", name);
         applyPhysics = node.getBoolean("apply_physics", applyPhysics);
         consumed = node.getBoolean("consumed", consumed);
+        if (node.contains("volumes")) {
+            for (String encoded : node.getStringList("volumes")) {
+                try {
+                    addVolume(VolumeSnapshot.decodeString(encoded));
+                } catch (IOException ex) {
+                    Bukkit.getLogger().warning("Failed to load undo volume: " + ex.getMessage());
+                }
+            }
+        }
     }
 
     @Override
     public void save(ConfigurationSection node)
     {
-        super.save(node);
+        if (spilled)
+        {
+            // Save straight from the spill file, without registering anything
+            blockList = new LinkedList<BlockData>(readSpilled());
+            spilled = false;
+            super.save(node);
+            spilled = true;
+            blockList = null;
+        }
+        else
+        {
+            purgeForgotten();
+            super.save(node);
+        }
         node.set("time_to_live", (Integer)timeToLive);
         node.set("name", name);
         if (applyPhysics) node.set("apply_physics", true);
         if (consumed) node.set("consumed", true);
+        if (volumes != null) {
+            List<String> encodedVolumes = new ArrayList<String>();
+            for (VolumeSnapshot volume : volumes) {
+                try {
+                    encodedVolumes.add(volume.encodeString());
+                } catch (IOException ex) {
+                    Bukkit.getLogger().warning("Failed to save undo volume: " + ex.getMessage());
+                }
+            }
+            node.set("volumes", encodedVolumes);
+        }
+    }
+
+    /**
+     * Add a snapshot of a whole volume to this list.
+     *
+     * This is much cheaper than adding each block in the volume, but the blocks
+     * are not tracked individually, so undo overwrites any later changes made to
+     * them by other lists. Only use this for volumes nothing else is editing.
+     * Volumes are undone after all other blocks, newest first.
+     *
+     * @param volume The snapshot to add
+     */
+    public void addVolume(VolumeSnapshot volume)
+    {
+        if (volume == null || volume.size() == 0) return;
+        if (worldName != null && !worldName.equals(volume.getWorldName())) return;
+        if (worldName == null) worldName = volume.getWorldName();
+        if (volumes == null) volumes = new LinkedList<VolumeSnapshot>();
+        volumes.add(volume);
+        volumeMemory += volume.getEstimatedMemory();
+        updateMemory();
+        contain(volume.getMin());
+        contain(volume.getMax());
+        modifiedTime = System.currentTimeMillis();
+    }
+
+    public boolean hasVolumes()
+    {
+        return volumes != null && !volumes.isEmpty();
+    }
+
+    public int getVolumeSize()
+    {
+        int size = 0;
+        if (volumes != null) {
+            for (VolumeSnapshot volume : volumes) {
+                size += volume.remaining();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Restore blocks from the newest volume snapshot in this list.
+     *
+     * @param maxBlocks The maximum number of blocks to restore
+     * @param applyPhysics Whether to apply physics
+     * @return The number of blocks processed, zero if there are no volumes left or a chunk is loading
+     */
+    public int undoVolumes(int maxBlocks, boolean applyPhysics)
+    {
+        int processed = 0;
+        while (volumes != null && !volumes.isEmpty() && processed < maxBlocks)
+        {
+            VolumeSnapshot volume = volumes.get(volumes.size() - 1);
+            int undone = volume.undo(maxBlocks - processed, applyPhysics);
+            processed += undone;
+            if (volume.isFinished())
+            {
+                volumes.remove(volumes.size() - 1);
+                volumeMemory -= volume.getEstimatedMemory();
+                updateMemory();
+            }
+            else if (undone == 0)
+            {
+                break;
+            }
+        }
+        if (volumes != null && volumes.isEmpty())
+        {
+            volumes = null;
+            volumeMemory = 0;
+            updateMemory();
+        }
+        return processed;
+    }
+
+    @Override
+    public boolean contains(Block block)
+    {
+        if (super.contains(block)) return true;
+        if (volumes != null) {
+            for (VolumeSnapshot volume : volumes) {
+                if (volume.contains(block)) return true;
+            }
+        }
+        return false;
     }
 
     public void watch(Entity entity)
@@ -541,6 +1399,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         watch(entity);
         contain(entity.getLocation().toVector());
         modifiedTime = System.currentTimeMillis();
+        updateMemory();
     }
 
     public void add(Runnable runnable)
@@ -549,6 +1408,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         if (runnables == null) runnables = new LinkedList<Runnable>();
         runnables.add(runnable);
         modifiedTime = System.currentTimeMillis();
+        updateMemory();
     }
 
     public EntityData modify(Entity entity)
@@ -571,6 +1431,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
             }
         }
         modifiedTime = System.currentTimeMillis();
+        updateMemory();
 
         return entityData;
     }
@@ -628,12 +1489,14 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
             modifiedEntities.remove(entityId);
         }
         modifiedTime = System.currentTimeMillis();
+        updateMemory();
     }
 
     public void convert(Entity fallingBlock, Block block)
     {
         if (entities != null) {
             entities.remove(fallingBlock);
+            updateMemory();
         }
         add(block);
         modifiedTime = System.currentTimeMillis();
@@ -661,6 +1524,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     {
         if (entities != null) {
             entities.remove(explodingEntity);
+            updateMemory();
         }
         // Prevent dropping items if this is going to auto-undo
         if (isScheduled()) {
@@ -682,6 +1546,7 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         // TODO: What is this about?
         if (entities != null) {
             entities.remove(explodingEntity);
+            updateMemory();
         }
     }
 
@@ -714,24 +1579,52 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         return area.contains(location.toVector(), threshold);
     }
 
+    /**
+     * Drop blocks that no longer differ from the world, in one go.
+     *
+     * Blocks in unloaded chunks are kept. For large lists, add a PruneBatch to a Mage
+     * instead, which does the same work over several ticks.
+     */
     public void prune()
     {
-        if (blockList == null) return;
+        PruneBatch batch = new PruneBatch(this);
+        while (!batch.isFinished())
+        {
+            batch.process(1000);
+        }
+    }
 
-        List<BlockData> current = new ArrayList<BlockData>(blockList);
+    /**
+     * Drop blocks from this list, clearing them from the undo registry, in a single pass.
+     *
+     * @param blockIds The ids of the blocks to drop
+     * @return The number of blocks dropped
+     */
+    public int prune(LongHashSet blockIds)
+    {
+        restore();
+        if (blockList == null) return 0;
 
-        blockList = null;
-        blockIdMap = null;
-        for (BlockData block : current)
+        int pruned = 0;
+        Iterator<BlockData> it = blockList.iterator();
+        while (it.hasNext())
         {
-            if (block.isDifferent()) {
-                super.add(block);
-            } else {
+            BlockData block = it.next();
+            long blockId = block.getId();
+            if (blockIds.contains(blockId))
+            {
+                it.remove();
+                blockIdMap.remove(blockId);
                 removeFromModified(block);
+                pruned++;
             }
         }
-
-        modifiedTime = System.currentTimeMillis();
+        if (pruned > 0)
+        {
+            modifiedTime = System.currentTimeMillis();
+            updateMemory();
+        }
+        return pruned;
     }
 
     @Override
@@ -792,6 +1685,22 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     public void setUndoQueue(com.elmakers.mine.bukkit.api.block.UndoQueue undoQueue) {
         if (undoQueue != null && undoQueue instanceof UndoQueue) {
             this.undoQueue = (UndoQueue)undoQueue;
+            sequence = ++nextSequence;
+            UndoListIndex.update(this);
+            estimatedMemory = computeEstimatedMemory();
+            this.undoQueue.adjustMemory(estimatedMemory);
+        }
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void contain(Vector vector) {
+        super.contain(vector);
+        if (undoQueue != null) {
+            UndoListIndex.update(this);
         }
     }
 
@@ -800,7 +1709,9 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     }
 
     public void unlink() {
+        UndoListIndex.remove(this);
         if (undoQueue != null) {
+            undoQueue.adjustMemory(-estimatedMemory);
             undoQueue.removed(this);
             undoQueue = null;
         }
@@ -835,6 +1746,22 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         return applyPhysics;
     }
 
+    /**
+     * Set whether physics is left until the undo finishes, rather than applied per block.
+     *
+     * This only matters if physics is applied. Blocks restored from volume
+     * snapshots still apply physics as they go.
+     *
+     * @param deferPhysics Whether to defer physics to a single pass at the end
+     */
+    public void setDeferPhysics(boolean deferPhysics) {
+        this.deferPhysics = deferPhysics;
+    }
+
+    public boolean isDeferringPhysics() {
+        return deferPhysics;
+    }
+
     public static com.elmakers.mine.bukkit.api.block.UndoList getUndoList(Entity entity) {
         com.elmakers.mine.bukkit.api.block.UndoList blockList = null;
         if (entity != null && entity.hasMetadata("MagicBlockList")) {
@@ -851,7 +1778,14 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     }
 
     public static BlockData getBlockData(Location location) {
-        long blockId = com.elmakers.mine.bukkit.block.BlockData.getBlockId(location.getBlock());
+        return getBlockData(BlockKey.toKey(location));
+    }
+
+    public static BlockData getBlockData(BlockKey blockKey) {
+        return getBlockData(blockKey.getKey());
+    }
+
+    public static BlockData getBlockData(long blockId) {
         BlockData modifiedBlock = modified.get(blockId);
         if (modifiedBlock != null) {
             return modifiedBlock;
@@ -860,15 +1794,39 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
         if (watchedBlock != null) {
             return watchedBlock;
         }
+        if (UndoMemoryGovernor.hasSpilled()) {
+            UndoList spilledList = getSpilledList(blockId);
+            if (spilledList != null) {
+                spilledList.restore();
+                return modified.get(blockId);
+            }
+        }
 
         return null;
     }
 
+    protected static UndoList getSpilledList(long blockId) {
+        UndoList newest = null;
+        String worldName = BlockKey.getWorldName(blockId);
+        if (worldName == null) return null;
+        for (UndoList list : UndoListIndex.getUndoLists(worldName, BlockKey.getX(blockId), BlockKey.getY(blockId), BlockKey.getZ(blockId))) {
+            if (list.spilled && list.containsKey(blockId) && (newest == null || list.sequence > newest.sequence)) {
+                newest = list;
+            }
+        }
+        return newest;
+    }
+
     public static com.elmakers.mine.bukkit.api.block.UndoList getUndoList(Location location) {
         BlockData blockData = getBlockData(location);
         return blockData == null ? null : blockData.getUndoList();
     }
 
+    public static com.elmakers.mine.bukkit.api.block.UndoList getUndoList(BlockKey blockKey) {
+        BlockData blockData = getBlockData(blockKey);
+        return blockData == null ? null : blockData.getUndoList();
+    }
+
     public static Map<Long, BlockData> getModified() {
         return modified;
     }
@@ -921,14 +1879,258 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     }
 
     public void sort(Set<Material> attachables) {
+        restore();
         if (blockList == null) return;
 
-        Collections.reverse(blockList);
-        if (attachables == null) {
+        BlockData[] blocks = getReversedBlocks();
+        UndoOrdering.sort(blocks, attachables);
+        setBlocks(blocks);
+    }
+
+    /**
+     * Sort this list for undo, grouping blocks by chunk.
+     *
+     * All non-attachable blocks are undone first, a chunk at a time, and then all
+     * attachable blocks, again a chunk at a time, so attachables always have something
+     * to attach to. Within each chunk, blocks are undone from the bottom up.
+     *
+     * The resulting chunk order is available from getUndoChunks, for prefetching.
+     *
+     * @param attachables The set of materials to undo last
+     */
+    public void sortByChunk(Set<Material> attachables) {
+        undoChunks = null;
+        restore();
+        if (blockList == null) return;
+
+        BlockData[] blocks = getReversedBlocks();
+        undoChunks = UndoOrdering.sortByChunk(blocks, attachables);
+        setBlocks(blocks);
+    }
+
+    private BlockData[] getReversedBlocks() {
+        BlockData[] blocks = new BlockData[blockList.size()];
+        int index = blocks.length;
+        for (BlockData block : blockList) {
+            blocks[--index] = block;
+        }
+        return blocks;
+    }
+
+    private void setBlocks(BlockData[] blocks) {
+        blockList.clear();
+        blockList.addAll(Arrays.asList(blocks));
+    }
+
+    @Override
+    public int size() {
+        if (spilled) return spilledSize;
+        return forgotten == null ? super.size() : super.size() - forgotten.size();
+    }
+
+    @Override
+    public void clear() {
+        forgotten = null;
+        super.clear();
+    }
+
+    @Override
+    public Iterator<BlockData> iterator() {
+        restore();
+        return super.iterator();
+    }
+
+    @Override
+    public Collection<BlockData> getBlockList() {
+        restore();
+        return super.getBlockList();
+    }
+
+    /**
+     * Estimate the heap memory used by this list: its blocks, attached blocks,
+     * entities, runnables and volumes.
+     *
+     * This is kept up to date as the list changes, so is cheap to call.
+     *
+     * @return The estimate, in bytes
+     */
+    @Override
+    public long getEstimatedMemory() {
+        return estimatedMemory;
+    }
+
+    private long computeEstimatedMemory() {
+        long memory = UndoMetrics.LIST_MEMORY + volumeMemory;
+        memory += spilled ? (long)spilledSize * UndoMemoryGovernor.SPILLED_BLOCK_MEMORY : super.getEstimatedMemory();
+        if (attached != null) {
+            memory += (long)attached.size() * com.elmakers.mine.bukkit.block.BlockData.ESTIMATED_MEMORY;
+        }
+        if (entities != null) {
+            memory += (long)entities.size() * UndoMetrics.ENTITY_MEMORY;
+        }
+        if (modifiedEntities != null) {
+            memory += (long)modifiedEntities.size() * UndoMetrics.ENTITY_DATA_MEMORY;
+        }
+        if (runnables != null) {
+            memory += (long)runnables.size() * UndoMetrics.RUNNABLE_MEMORY;
+        }
+        return memory;
+    }
+
+    /**
+     * Recompute the memory estimate, passing any change on to this list's undo queue.
+     */
+    protected void updateMemory() {
+        long memory = computeEstimatedMemory();
+        long delta = memory - estimatedMemory;
+        estimatedMemory = memory;
+        if (delta != 0 && undoQueue != null) {
+            undoQueue.adjustMemory(delta);
+        }
+    }
+
+    @Override
+    protected void blocksChanged() {
+        updateMemory();
+    }
+
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Write this list's blocks to the UndoMemoryGovernor's spill file and drop them
+     * from memory.
+     *
+     * Only queued lists that are not scheduled or being processed can be spilled, and
+     * only if each block is the sole undo record at its position and has no tile
+     * entity data. Block ids are kept, so contains still works.
+     *
+     * @return true if the list was spilled
+     */
+    public boolean spill() {
+        if (spilled || undone || undoQueue == null || isScheduled()) return false;
+        purgeForgotten();
+        if (blockList == null || blockList.isEmpty()) return false;
+        if (batch != null && !batch.isFinished()) return false;
+
+        for (BlockData block : blockList) {
+            if (!(block instanceof com.elmakers.mine.bukkit.block.BlockData) || modified.get(block.getId()) != block) return false;
+            com.elmakers.mine.bukkit.block.BlockData blockData = (com.elmakers.mine.bukkit.block.BlockData)block;
+            if (blockData.getStateStack() != null || blockData.extraData != null) return false;
+        }
+
+        byte[] data;
+        try {
+            data = BlockListCodec.encode(blockList, false);
+        } catch (IOException ex) {
+            Bukkit.getLogger().warning("Failed to encode undo data for spilling: " + ex.getMessage());
+            return false;
+        }
+        if (!UndoMemoryGovernor.write(this, data, blockIdMap)) return false;
+
+        for (BlockData block : blockList) {
+            clearModified(block.getId());
+            block.setUndoList(null);
+        }
+        spilledSize = blockList.size();
+        spilled = true;
+        blockList = null;
+        updateMemory();
+        return true;
+    }
+
+    /**
+     * Read this list's blocks back from the spill file, if it was spilled.
+     *
+     * Blocks are registered underneath any newer undo records made at the same
+     * position while this list was spilled. Blocks committed in the meantime are dropped,
+     * as are any records dropped from an in-memory list by commitChunk.
+     */
+    public void restore() {
+        if (!spilled) {
+            purgeForgotten();
+            return;
+        }
+
+        List<com.elmakers.mine.bukkit.block.BlockData> blocks = readSpilled();
+        LongHashSet spilledIds = blockIdMap;
+        spilled = false;
+        spilledSize = 0;
+        blockList = new LinkedList<BlockData>();
+        blockIdMap = new LongHashSet(blocks.size());
+        for (com.elmakers.mine.bukkit.block.BlockData block : blocks) {
+            long blockId = block.getId();
+            if (UndoMemoryGovernor.wasCommitted(this, blockId)) continue;
+            blockList.addLast(block);
+            blockIdMap.add(blockId);
+            block.setUndoList(this);
+            registerRestored(block);
+        }
+        UndoMemoryGovernor.release(this, spilledIds);
+        updateMemory();
+    }
+
+    private List<com.elmakers.mine.bukkit.block.BlockData> readSpilled() {
+        try {
+            return BlockListCodec.decode(UndoMemoryGovernor.read(this));
+        } catch (IOException ex) {
+            Bukkit.getLogger().warning("Failed to reload spilled undo data, " + spilledSize + " blocks lost: " + ex.getMessage());
+        }
+        return new ArrayList<com.elmakers.mine.bukkit.block.BlockData>();
+    }
+
+    private void registerRestored(com.elmakers.mine.bukkit.block.BlockData block) {
+        long blockId = block.getId();
+        BlockData top = modified.get(blockId);
+        if (top == null) {
+            setModified(blockId, block);
             return;
         }
-        blockComparator.setAttachables(attachables);
-        Collections.sort(blockList, blockComparator);
+
+        // Find the oldest record made after this list was spilled, if any
+        BlockData newer = null;
+        for (BlockData layer : getLayers(top)) {
+            com.elmakers.mine.bukkit.api.block.UndoList layerList = layer.getUndoList();
+            if (!(layerList instanceof UndoList)) continue;
+            long layerSequence = ((UndoList)layerList).sequence;
+            if (layerSequence == 0 || layerSequence > sequence) {
+                newer = layer;
+                break;
+            }
+        }
+        if (newer instanceof com.elmakers.mine.bukkit.block.BlockData) {
+            BlockStateStack.linkBelow((com.elmakers.mine.bukkit.block.BlockData)newer, block);
+        } else {
+            block.setPriorState(top);
+            setModified(blockId, block);
+        }
+    }
+
+    void discardSpill() {
+        if (!spilled) return;
+        spilled = false;
+        spilledSize = 0;
+        UndoMemoryGovernor.release(this, blockIdMap);
+        blockIdMap = null;
+        updateMemory();
+    }
+
+    public long[] getUndoChunks() {
+        return undoChunks;
+    }
+
+    public BlockData peekNextBlock() {
+        purgeForgotten();
+        return blockList == null || blockList.isEmpty() ? null : blockList.getFirst();
+    }
+
+    public boolean isUndoByChunk() {
+        return undoByChunk;
+    }
+
+    public void setUndoByChunk(boolean undoByChunk) {
+        this.undoByChunk = undoByChunk;
     }
 
     public static boolean isReflective(Block block) {
@@ -940,11 +2142,19 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
     }
 
     public static Double getReflective(Block block) {
-        return block == null ? null : reflective.get(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
+        return getAmount(reflective, block);
     }
 
     public static Double getBreakable(Block block) {
-        return block == null ? null : breakable.get(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
+        return getAmount(breakable, block);
+    }
+
+    private static Double getAmount(LongDoubleHashMap amounts, Block block) {
+        if (block == null) return null;
+
+        // The primitive lookups, rather than the Map get, which boxes the key
+        long blockId = com.elmakers.mine.bukkit.block.BlockData.getBlockId(block);
+        return amounts.containsKey(blockId) ? amounts.get(blockId, 0) : null;
     }
 
     public static void registerReflective(Block block, double amount) {
@@ -959,12 +2169,12 @@ public class UndoList extends BlockList implements com.elmakers.mine.bukkit.api.
 
     public static void unregisterBreakable(Block block) {
         if (block == null) return;
-        breakable.remove(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
+        breakable.removeKey(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
     }
 
     public static void unregisterReflective(Block block) {
         if (block == null) return;
-        reflective.remove(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
+        reflective.removeKey(com.elmakers.mine.bukkit.block.BlockData.getBlockId(block));
     }
 
     public double getUndoSpeed() {
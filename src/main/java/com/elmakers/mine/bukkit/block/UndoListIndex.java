@@ -0,0 +1,296 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.util.BlockVector;
+import org.bukkit.util.Vector;
+
+import com.elmakers.mine.bukkit.utility.LongHashMap;
+
+/**
+ * A spatial index over the areas of all live UndoLists.
+ *
+ * Each world is divided into a uniform grid of columns, CELL_SIZE blocks on a side,
+ * and every UndoList is registered in each column its BoundingBox overlaps. A point
+ * lookup is then a single hash lookup plus a check of the few lists sharing that
+ * column. Lists that span more than MAX_CELLS columns are kept in a separate per-world
+ * list and always checked, so one huge list can't flood the grid.
+ *
+ * UndoLists are added when they join an UndoQueue, re-registered as their area grows,
+ * and removed when they are unlinked. The index holds lists strongly, so a Mage's
+ * UndoQueue must be unloaded along with the Mage, see UndoQueue.unload.
+ */
+public class UndoListIndex {
+    public static final int CELL_BITS = 6;
+    public static final int CELL_SIZE = 1 << CELL_BITS;
+    public static final int MAX_CELLS = 256;
+
+    private static final Map<String, WorldGrid> worlds = new HashMap<String, WorldGrid>();
+    private static final Map<UndoList, Registration> registered = new IdentityHashMap<UndoList, Registration>();
+
+    private static class Registration {
+        private final String worldName;
+        private final int minCellX;
+        private final int minCellZ;
+        private final int maxCellX;
+        private final int maxCellZ;
+        private final boolean large;
+
+        public Registration(String worldName, int minCellX, int minCellZ, int maxCellX, int maxCellZ) {
+            this.worldName = worldName;
+            this.minCellX = minCellX;
+            this.minCellZ = minCellZ;
+            this.maxCellX = maxCellX;
+            this.maxCellZ = maxCellZ;
+            this.large = (long)(maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > MAX_CELLS;
+        }
+
+        public boolean covers(int minCellX, int minCellZ, int maxCellX, int maxCellZ) {
+            return this.minCellX <= minCellX && this.minCellZ <= minCellZ
+                && this.maxCellX >= maxCellX && this.maxCellZ >= maxCellZ;
+        }
+    }
+
+    private static class WorldGrid {
+        private final LongHashMap<List<UndoList>> cells = new LongHashMap<List<UndoList>>();
+        private final List<UndoList> large = new ArrayList<UndoList>();
+
+        public void add(UndoList list, Registration registration) {
+            if (registration.large) {
+                large.add(list);
+                return;
+            }
+            for (int x = registration.minCellX; x <= registration.maxCellX; x++) {
+                for (int z = registration.minCellZ; z <= registration.maxCellZ; z++) {
+                    long cellKey = getCellKey(x, z);
+                    List<UndoList> cell = cells.get(cellKey);
+                    if (cell == null) {
+                        cell = new ArrayList<UndoList>(2);
+                        cells.put(cellKey, cell);
+                    }
+                    cell.add(list);
+                }
+            }
+        }
+
+        public void remove(UndoList list, Registration registration) {
+            if (registration.large) {
+                removeIdentity(large, list);
+                return;
+            }
+            for (int x = registration.minCellX; x <= registration.maxCellX; x++) {
+                for (int z = registration.minCellZ; z <= registration.maxCellZ; z++) {
+                    long cellKey = getCellKey(x, z);
+                    List<UndoList> cell = cells.get(cellKey);
+                    if (cell == null) continue;
+                    removeIdentity(cell, list);
+                    if (cell.isEmpty()) {
+                        cells.remove(cellKey);
+                    }
+                }
+            }
+        }
+
+        public boolean isEmpty() {
+            return cells.isEmpty() && large.isEmpty();
+        }
+    }
+
+    private static void removeIdentity(List<UndoList> lists, UndoList list) {
+        for (int i = lists.size() - 1; i >= 0; i--) {
+            if (lists.get(i) == list) {
+                lists.remove(i);
+                return;
+            }
+        }
+    }
+
+    private static long getCellKey(int cellX, int cellZ) {
+        return ((long)cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add an UndoList to the index, or update its registration if its area has grown.
+     *
+     * Lists with no area or world yet are skipped, and will be picked up on a later update.
+     *
+     * @param list The list to index
+     */
+    public static void update(UndoList list) {
+        BoundingBox area = list.getArea();
+        String worldName = list.getWorldName();
+        if (area == null || worldName == null) return;
+
+        BlockVector min = area.getMin();
+        BlockVector max = area.getMax();
+        int minCellX = min.getBlockX() >> CELL_BITS;
+        int minCellZ = min.getBlockZ() >> CELL_BITS;
+        int maxCellX = max.getBlockX() >> CELL_BITS;
+        int maxCellZ = max.getBlockZ() >> CELL_BITS;
+
+        Registration current = registered.get(list);
+        if (current != null) {
+            if (current.worldName.equals(worldName) && (current.large || current.covers(minCellX, minCellZ, maxCellX, maxCellZ))) {
+                return;
+            }
+            remove(list);
+        }
+
+        Registration registration = new Registration(worldName, minCellX, minCellZ, maxCellX, maxCellZ);
+        WorldGrid grid = worlds.get(worldName);
+        if (grid == null) {
+            grid = new WorldGrid();
+            worlds.put(worldName, grid);
+        }
+        grid.add(list, registration);
+        registered.put(list, registration);
+    }
+
+    public static void remove(UndoList list) {
+        Registration registration = registered.remove(list);
+        if (registration == null) return;
+        WorldGrid grid = worlds.get(registration.worldName);
+        if (grid == null) return;
+        grid.remove(list, registration);
+        if (grid.isEmpty()) {
+            worlds.remove(registration.worldName);
+        }
+    }
+
+    public static boolean isIndexed(UndoList list) {
+        return registered.containsKey(list);
+    }
+
+    public static int size() {
+        return registered.size();
+    }
+
+    /**
+     * @return A copy of every UndoList in the index, in no particular order
+     */
+    public static List<UndoList> getUndoLists() {
+        return new ArrayList<UndoList>(registered.keySet());
+    }
+
+    public static void clear() {
+        worlds.clear();
+        registered.clear();
+    }
+
+    /**
+     * Find all UndoLists whose area contains a point.
+     *
+     * This only checks areas, use getUndoLists(Block) to find lists that actually
+     * hold a specific block.
+     *
+     * @param worldName The world to check
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The UndoLists found, in no particular order
+     */
+    public static List<UndoList> getUndoLists(String worldName, int x, int y, int z) {
+        WorldGrid grid = worlds.get(worldName);
+        if (grid == null) return Collections.emptyList();
+
+        List<UndoList> results = null;
+        Vector point = new Vector(x, y, z);
+        List<UndoList> cell = grid.cells.get(getCellKey(x >> CELL_BITS, z >> CELL_BITS));
+        if (cell != null) {
+            for (UndoList list : cell) {
+                BoundingBox area = list.getArea();
+                if (area != null && area.contains(point)) {
+                    if (results == null) results = new ArrayList<UndoList>();
+                    results.add(list);
+                }
+            }
+        }
+        for (UndoList list : grid.large) {
+            BoundingBox area = list.getArea();
+            if (area != null && area.contains(point)) {
+                if (results == null) results = new ArrayList<UndoList>();
+                results.add(list);
+            }
+        }
+        if (results == null) return Collections.emptyList();
+        return results;
+    }
+
+    public static List<UndoList> getUndoLists(Location location) {
+        if (location == null || location.getWorld() == null) return Collections.emptyList();
+        return getUndoLists(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * Find all UndoLists that hold a specific block.
+     *
+     * @param block The block to look for
+     * @return The UndoLists found, in no particular order
+     */
+    public static List<UndoList> getUndoLists(Block block) {
+        List<UndoList> candidates = getUndoLists(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+        if (candidates.isEmpty()) return candidates;
+        List<UndoList> results = new ArrayList<UndoList>(candidates.size());
+        for (UndoList list : candidates) {
+            if (list.contains(block)) {
+                results.add(list);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Find all UndoLists whose area intersects a box.
+     *
+     * @param worldName The world to check
+     * @param box The area to check
+     * @return The UndoLists found, in no particular order
+     */
+    public static Collection<UndoList> getUndoLists(String worldName, BoundingBox box) {
+        WorldGrid grid = worlds.get(worldName);
+        if (grid == null) return Collections.emptyList();
+
+        BlockVector min = box.getMin();
+        BlockVector max = box.getMax();
+        int minCellX = min.getBlockX() >> CELL_BITS;
+        int minCellZ = min.getBlockZ() >> CELL_BITS;
+        int maxCellX = max.getBlockX() >> CELL_BITS;
+        int maxCellZ = max.getBlockZ() >> CELL_BITS;
+
+        Map<UndoList, UndoList> results = new IdentityHashMap<UndoList, UndoList>();
+        if ((long)(maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > grid.cells.size()) {
+            // Cheaper to check every occupied cell than to walk the box
+            for (List<UndoList> cell : grid.cells.values()) {
+                addIntersecting(cell, box, results);
+            }
+        } else {
+            for (int x = minCellX; x <= maxCellX; x++) {
+                for (int z = minCellZ; z <= maxCellZ; z++) {
+                    List<UndoList> cell = grid.cells.get(getCellKey(x, z));
+                    if (cell != null) {
+                        addIntersecting(cell, box, results);
+                    }
+                }
+            }
+        }
+        addIntersecting(grid.large, box, results);
+        return results.keySet();
+    }
+
+    private static void addIntersecting(List<UndoList> lists, BoundingBox box, Map<UndoList, UndoList> results) {
+        for (UndoList list : lists) {
+            BoundingBox area = list.getArea();
+            if (area != null && area.intersects(box)) {
+                results.put(list, list);
+            }
+        }
+    }
+}
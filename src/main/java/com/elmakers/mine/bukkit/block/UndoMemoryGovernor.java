@@ -0,0 +1,343 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+
+import com.elmakers.mine.bukkit.utility.LongHashSet;
+import com.elmakers.mine.bukkit.utility.LongIntHashMap;
+
+/**
+ * Keeps the undo data held by all UndoQueues under a memory budget.
+ *
+ * Once the estimated size of every queued UndoList goes over the budget, the
+ * least recently modified lists have their blocks written to a spill file and
+ * dropped from the heap. A spilled list keeps its block ids, so contains checks
+ * still work, and reads its blocks back in when it is undone, saved, or otherwise
+ * needs them. UndoList.getBlockData also reloads a spilled list when asked about
+ * one of its blocks.
+ *
+ * Only lists that are not scheduled to undo, have no batch running, and whose
+ * blocks are each the only undo record at their position are spilled, so that
+ * nothing else holds on to their records. Blocks with tile entity data are
+ * never spilled.
+ *
+ * Spilling is off until both a budget and a spill file are set.
+ */
+public class UndoMemoryGovernor {
+    // Memory kept per block in a spilled list, for its id
+    public static final int SPILLED_BLOCK_MEMORY = 16;
+
+    private static long budget = 0;
+    private static long checkInterval = 5000;
+    private static long lastCheck = 0;
+    private static File spillFile;
+    private static RandomAccessFile spillAccess;
+    private static FileChannel spillChannel;
+    private static long spillEnd = 0;
+    private static final Map<UndoList, SpillRecord> spilled = new IdentityHashMap<UndoList, SpillRecord>();
+
+    // How many spilled lists hold each block id, so commits can skip the rest quickly
+    private static final LongIntHashMap spilledBlocks = new LongIntHashMap();
+
+    private static long spilledBytes = 0;
+    private static int spillCount = 0;
+    private static int reloadCount = 0;
+
+    private static class SpillRecord {
+        private final long offset;
+        private final int length;
+
+        // Blocks of this list committed since it was spilled, these are dropped on reload
+        private LongHashSet committed;
+
+        private SpillRecord(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Set the memory budget for all queued undo data.
+     *
+     * @param bytes The budget in estimated bytes, or 0 for no limit
+     */
+    public static void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+    }
+
+    public static long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Set how often check will look at memory use.
+     *
+     * @param millis The minimum time between checks
+     */
+    public static void setCheckInterval(long millis) {
+        checkInterval = Math.max(0, millis);
+    }
+
+    /**
+     * Set the file spilled lists are written to.
+     *
+     * Any lists already spilled to a previous file are reloaded first.
+     *
+     * @param file The spill file, which will be replaced, or null to disable spilling
+     */
+    public static void setSpillFile(File file) {
+        if (spillChannel != null) {
+            restoreAll();
+            close();
+        }
+        spillFile = file;
+    }
+
+    public static File getSpillFile() {
+        return spillFile;
+    }
+
+    public static boolean isEnabled() {
+        return budget > 0 && spillFile != null;
+    }
+
+    /**
+     * Estimate the memory held by every queued UndoList.
+     *
+     * @return The estimate, in bytes
+     */
+    public static long getEstimatedMemory() {
+        return UndoMetrics.getTotalMemory();
+    }
+
+    /**
+     * Spill lists if memory use is over budget.
+     *
+     * This does nothing if called again within the check interval.
+     *
+     * @return The number of lists spilled
+     */
+    public static int check() {
+        if (!isEnabled()) return 0;
+        long now = System.currentTimeMillis();
+        if (now < lastCheck + checkInterval) return 0;
+        lastCheck = now;
+        return enforce();
+    }
+
+    /**
+     * Spill the coldest lists until memory use is back under budget, or nothing
+     * else can be spilled.
+     *
+     * @return The number of lists spilled
+     */
+    public static int enforce() {
+        if (!isEnabled()) return 0;
+
+        long total = UndoMetrics.getTotalMemory();
+        if (total <= budget) return 0;
+
+        List<UndoList> lists = UndoListIndex.getUndoLists();
+
+        Collections.sort(lists, new Comparator<UndoList>() {
+            @Override
+            public int compare(UndoList list1, UndoList list2) {
+                long time1 = list1.getModifiedTime();
+                long time2 = list2.getModifiedTime();
+                return time1 < time2 ? -1 : (time1 == time2 ? 0 : 1);
+            }
+        });
+
+        int count = 0;
+        for (UndoList list : lists) {
+            if (total <= budget) break;
+            if (list.isSpilled()) continue;
+            long before = list.getEstimatedMemory();
+            if (list.spill()) {
+                total -= before - list.getEstimatedMemory();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static boolean write(UndoList list, byte[] data, LongHashSet blockIds) {
+        if (spillFile == null) return false;
+        try {
+            if (spillChannel == null) {
+                File folder = spillFile.getParentFile();
+                if (folder != null && !folder.exists()) {
+                    folder.mkdirs();
+                }
+                spillAccess = new RandomAccessFile(spillFile, "rw");
+                spillAccess.setLength(0);
+                spillChannel = spillAccess.getChannel();
+                spillEnd = 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = spillEnd;
+            while (buffer.hasRemaining()) {
+                position += spillChannel.write(buffer, position);
+            }
+            spilled.put(list, new SpillRecord(spillEnd, data.length));
+            for (long blockId : blockIds.toArray()) {
+                spilledBlocks.put(blockId, spilledBlocks.get(blockId, 0) + 1);
+            }
+            spillEnd = position;
+            spilledBytes += data.length;
+            spillCount++;
+            return true;
+        } catch (IOException ex) {
+            Bukkit.getLogger().warning("Failed to spill undo data to " + spillFile.getPath() + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    static byte[] read(UndoList list) throws IOException {
+        SpillRecord record = spilled.get(list);
+        if (record == null || spillChannel == null) {
+            throw new IOException("No spilled undo data for list");
+        }
+        byte[] data = new byte[record.length];
+        MappedByteBuffer mapped = spillChannel.map(FileChannel.MapMode.READ_ONLY, record.offset, record.length);
+        mapped.get(data);
+        reloadCount++;
+        return data;
+    }
+
+    /**
+     * Drop the spill record for a list that has been reloaded or committed.
+     *
+     * @param list The list to release
+     * @param blockIds The ids of the blocks the list held when it was spilled
+     */
+    static void release(UndoList list, LongHashSet blockIds) {
+        SpillRecord record = spilled.remove(list);
+        if (record == null) return;
+        spilledBytes -= record.length;
+        if (blockIds != null && !spilled.isEmpty()) {
+            for (long blockId : blockIds.toArray()) {
+                int count = spilledBlocks.get(blockId, 0);
+                if (count <= 1) {
+                    spilledBlocks.remove(blockId);
+                } else {
+                    spilledBlocks.put(blockId, count - 1);
+                }
+            }
+        }
+
+        // Nothing is left in the file, so start it over
+        if (spilled.isEmpty()) {
+            spilledBlocks.clear();
+            spilledBytes = 0;
+            spillEnd = 0;
+            if (spillAccess != null) {
+                try {
+                    spillAccess.setLength(0);
+                } catch (IOException ex) {
+                    Bukkit.getLogger().warning("Failed to truncate undo spill file: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Note that a block was committed, so that spilled lists holding it drop it when
+     * they are reloaded.
+     *
+     * @param blockId The id of the committed block
+     */
+    static void committed(long blockId) {
+        if (spilled.isEmpty() || !spilledBlocks.containsKey(blockId)) return;
+        for (Map.Entry<UndoList, SpillRecord> entry : spilled.entrySet()) {
+            if (!entry.getKey().containsKey(blockId)) continue;
+            SpillRecord record = entry.getValue();
+            if (record.committed == null) {
+                record.committed = new LongHashSet();
+            }
+            record.committed.add(blockId);
+        }
+    }
+
+    static boolean wasCommitted(UndoList list, long blockId) {
+        SpillRecord record = spilled.get(list);
+        return record != null && record.committed != null && record.committed.contains(blockId);
+    }
+
+    static boolean hasSpilled() {
+        return !spilled.isEmpty();
+    }
+
+    /**
+     * Reload every spilled list.
+     */
+    public static void restoreAll() {
+        for (UndoList list : new ArrayList<UndoList>(spilled.keySet())) {
+            list.restore();
+        }
+    }
+
+    /**
+     * Close and delete the spill file.
+     *
+     * Any lists still spilled lose their blocks, so this should only be called
+     * once undo queues have been saved or committed.
+     */
+    public static void close() {
+        for (UndoList list : new ArrayList<UndoList>(spilled.keySet())) {
+            list.discardSpill();
+        }
+        spilled.clear();
+        spilledBlocks.clear();
+        spilledBytes = 0;
+        spillEnd = 0;
+        if (spillAccess != null) {
+            try {
+                spillAccess.close();
+            } catch (IOException ignored) {
+            }
+            spillAccess = null;
+            spillChannel = null;
+        }
+        if (spillFile != null && spillFile.exists()) {
+            spillFile.delete();
+        }
+    }
+
+    public static int getSpilledListCount() {
+        return spilled.size();
+    }
+
+    /**
+     * @return The bytes of spill file in use by spilled lists
+     */
+    public static long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return The number of lists spilled since the server started
+     */
+    public static int getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * @return The number of lists reloaded from the spill file since the server started
+     */
+    public static int getReloadCount() {
+        return reloadCount;
+    }
+}
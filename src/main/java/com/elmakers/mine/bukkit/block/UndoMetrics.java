@@ -0,0 +1,107 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Server-wide totals of the memory used by undo data.
+ *
+ * Each UndoList keeps an estimate of its own size, updated as blocks, attached
+ * blocks, entities, runnables and volumes are added and removed. Lists pass their
+ * changes on to the UndoQueue they are in, and queues pass them on to here, so none
+ * of these totals are ever recomputed by walking lists.
+ *
+ * Only lists that are in an UndoQueue are counted here.
+ */
+public class UndoMetrics {
+    // Rough per-item costs, beyond the blocks themselves
+    public static final int LIST_MEMORY = 256;
+    public static final int ENTITY_MEMORY = 48;
+    public static final int ENTITY_DATA_MEMORY = 400;
+    public static final int RUNNABLE_MEMORY = 32;
+
+    private static long totalMemory = 0;
+    private static long notifyStep = 1024 * 1024;
+    private static long lastNotified = 0;
+    private static final Set<UndoQueue> queues = Collections.newSetFromMap(new IdentityHashMap<UndoQueue, Boolean>());
+    private static final List<UndoMetricsListener> listeners = new ArrayList<UndoMetricsListener>();
+
+    static void adjust(UndoQueue queue, long delta) {
+        totalMemory += delta;
+        if (queue.getEstimatedMemory() > 0) {
+            queues.add(queue);
+        } else {
+            queues.remove(queue);
+        }
+
+        if (!listeners.isEmpty() && Math.abs(totalMemory - lastNotified) >= notifyStep) {
+            lastNotified = totalMemory;
+            for (UndoMetricsListener listener : listeners) {
+                listener.onUndoMemoryChanged(queue, queue.getEstimatedMemory(), totalMemory);
+            }
+        }
+    }
+
+    /**
+     * Stop counting a queue that is being unloaded, along with whatever memory it
+     * still has.
+     */
+    static void remove(UndoQueue queue) {
+        queues.remove(queue);
+        totalMemory -= queue.getEstimatedMemory();
+    }
+
+    /**
+     * @return The estimated memory used by every queued UndoList, in bytes
+     */
+    public static long getTotalMemory() {
+        return totalMemory;
+    }
+
+    /**
+     * @return The number of undo queues holding any undo data
+     */
+    public static int getQueueCount() {
+        return queues.size();
+    }
+
+    /**
+     * Find the undo queues using the most memory.
+     *
+     * @param count The maximum number of queues to return
+     * @return The largest queues, largest first
+     */
+    public static List<UndoQueue> getLargestQueues(int count) {
+        List<UndoQueue> largest = new ArrayList<UndoQueue>(queues);
+        Collections.sort(largest, new Comparator<UndoQueue>() {
+            @Override
+            public int compare(UndoQueue queue1, UndoQueue queue2) {
+                long memory1 = queue1.getEstimatedMemory();
+                long memory2 = queue2.getEstimatedMemory();
+                return memory1 > memory2 ? -1 : (memory1 == memory2 ? 0 : 1);
+            }
+        });
+        return largest.size() > count ? new ArrayList<UndoQueue>(largest.subList(0, count)) : largest;
+    }
+
+    public static void addListener(UndoMetricsListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public static void removeListener(UndoMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param bytes How far the total must move before listeners are called again
+     */
+    public static void setNotifyStep(long bytes) {
+        notifyStep = Math.max(1, bytes);
+    }
+}
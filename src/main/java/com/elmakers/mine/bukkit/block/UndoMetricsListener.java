@@ -0,0 +1,16 @@
+package com.elmakers.mine.bukkit.block;
+
+/**
+ * Receives updates on the memory used by undo data.
+ *
+ * Register with UndoMetrics.addListener. Listeners are called on the main thread,
+ * each time the server-wide total moves by the notification step.
+ */
+public interface UndoMetricsListener {
+    /**
+     * @param queue The queue whose change crossed the notification step
+     * @param queueBytes The estimated memory now used by that queue
+     * @param totalBytes The estimated memory now used by all undo queues
+     */
+    void onUndoMemoryChanged(UndoQueue queue, long queueBytes, long totalBytes);
+}
@@ -0,0 +1,155 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.bukkit.Material;
+
+import com.elmakers.mine.bukkit.api.block.BlockData;
+import com.elmakers.mine.bukkit.utility.LongIntHashMap;
+
+/**
+ * Puts blocks into undo order in linear time.
+ *
+ * Undo order is non-attachable blocks before attachable ones, then (optionally) by chunk,
+ * then from the bottom up. Every key is a small integer, so rather than comparing
+ * blocks this runs stable counting sorts, least significant key first. Ties keep the
+ * order the blocks were passed in, the same as the stable Collections.sort this replaces.
+ *
+ * Each block is checked against the attachable set once, rather than once per
+ * comparison.
+ */
+public class UndoOrdering {
+    /**
+     * Sort blocks, attachables last and then by Y.
+     *
+     * @param blocks The blocks to sort, in place
+     * @param attachables The materials to undo last, or null to leave the blocks as they are
+     */
+    public static void sort(BlockData[] blocks, Set<Material> attachables) {
+        int count = blocks.length;
+        if (count < 2 || attachables == null) return;
+
+        int[] bins = getAttachableBins(blocks, attachables);
+        apply(blocks, countingSort(sortByY(blocks), bins, 2));
+    }
+
+    /**
+     * Sort blocks, attachables last, then by chunk in the order each chunk first
+     * appears, then by Y.
+     *
+     * @param blocks The blocks to sort, in place
+     * @param attachables The materials to undo last, may be null
+     * @return The chunk key of each run of blocks in the sorted array, in order
+     */
+    public static long[] sortByChunk(BlockData[] blocks, Set<Material> attachables) {
+        int count = blocks.length;
+        LongIntHashMap chunkRanks = new LongIntHashMap();
+        long[] chunkKeys = new long[16];
+        int[] ranks = new int[count];
+        for (int i = 0; i < count; i++) {
+            long chunkKey = BlockKey.getChunkKey(blocks[i].getId());
+            int rank = chunkRanks.get(chunkKey, -1);
+            if (rank < 0) {
+                rank = chunkRanks.size();
+                chunkRanks.put(chunkKey, rank);
+                if (rank == chunkKeys.length) {
+                    chunkKeys = Arrays.copyOf(chunkKeys, rank * 2);
+                }
+                chunkKeys[rank] = chunkKey;
+            }
+            ranks[i] = rank;
+        }
+        int chunkCount = chunkRanks.size();
+
+        // Attachables get their own copy of each chunk, after all of the others
+        int bucketCount = chunkCount;
+        if (attachables != null && count > 0) {
+            int[] bins = getAttachableBins(blocks, attachables);
+            for (int i = 0; i < count; i++) {
+                ranks[i] += bins[i] * chunkCount;
+            }
+            bucketCount *= 2;
+        }
+
+        int[] order = count < 2 ? identity(count) : countingSort(sortByY(blocks), ranks, bucketCount);
+
+        long[] runs = new long[Math.min(bucketCount, count)];
+        int runCount = 0;
+        int lastBucket = -1;
+        for (int i = 0; i < count; i++) {
+            int bucket = ranks[order[i]];
+            if (bucket != lastBucket) {
+                runs[runCount++] = chunkKeys[bucket % chunkCount];
+                lastBucket = bucket;
+            }
+        }
+        apply(blocks, order);
+        return runCount == runs.length ? runs : Arrays.copyOf(runs, runCount);
+    }
+
+    private static int[] sortByY(BlockData[] blocks) {
+        int count = blocks.length;
+        int[] ys = new int[count];
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int y = BlockKey.getY(blocks[i].getId());
+            ys[i] = y;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        for (int i = 0; i < count; i++) {
+            ys[i] -= minY;
+        }
+        return countingSort(identity(count), ys, maxY - minY + 1);
+    }
+
+    private static int[] getAttachableBins(BlockData[] blocks, Set<Material> attachables) {
+        MaterialSet attachableSet = attachables instanceof MaterialSet ? (MaterialSet)attachables : MaterialSet.copyOf(attachables);
+        int[] bins = new int[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            bins[i] = attachableSet.contains(blocks[i].getMaterial()) ? 1 : 0;
+        }
+        return bins;
+    }
+
+    private static int[] identity(int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /**
+     * A stable counting sort of an ordering.
+     *
+     * @param order Indices into the keys array, in their current order
+     * @param keys The key of each index, from 0 to range - 1
+     * @param range The number of distinct keys
+     * @return A new ordering, sorted by key
+     */
+    private static int[] countingSort(int[] order, int[] keys, int range) {
+        int[] starts = new int[range + 1];
+        for (int index : order) {
+            starts[keys[index] + 1]++;
+        }
+        for (int i = 1; i <= range; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] sorted = new int[order.length];
+        for (int index : order) {
+            sorted[starts[keys[index]]++] = index;
+        }
+        return sorted;
+    }
+
+    private static void apply(BlockData[] blocks, int[] order) {
+        BlockData[] sorted = new BlockData[blocks.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = blocks[order[i]];
+        }
+        System.arraycopy(sorted, 0, blocks, 0, blocks.length);
+    }
+}
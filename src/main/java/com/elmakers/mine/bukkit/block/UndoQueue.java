@@ -4,17 +4,27 @@ import com.elmakers.mine.bukkit.api.data.UndoData;
 import com.elmakers.mine.bukkit.api.magic.Mage;
 import com.elmakers.mine.bukkit.api.magic.MageController;
 import com.elmakers.mine.bukkit.api.spell.Spell;
+import com.elmakers.mine.bukkit.batch.CommitBatch;
+import com.elmakers.mine.bukkit.batch.RollbackBatch;
 import org.bukkit.block.Block;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
 {
+    // The live queue of each Mage id, so a reloaded Mage can unload the one it replaces
+    private static final Map<String, UndoQueue> queues = new HashMap<String, UndoQueue>();
+
     private final Mage					owner;
     private UndoList                    head = null;
     private UndoList                    tail = null;
     private int                         size = 0;
     private int                         maxSize    = 0;
+    private BlockListFormat             saveFormat = BlockListFormat.LEGACY;
+    private long                        estimatedMemory = 0;
 
     public UndoQueue(Mage mage)
     {
@@ -43,7 +53,7 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
                 }
                 else
                 {
-                    expired.commit();
+                    CommitBatch.evict(expired, owner.getController().getPlugin());
                 }
             }
         }
@@ -51,6 +61,7 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
         addList.setUndoQueue(this);
         size++;
         if (head == null) {
+            register();
             head = addList;
             tail = addList;
         } else {
@@ -58,6 +69,8 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
             head.setNext(addList);
             head = addList;
         }
+
+        UndoMemoryGovernor.check();
     }
 
     public void removed(UndoList list)
@@ -69,6 +82,9 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
             tail = list.getNext();
         }
         size--;
+        if (head == null) {
+            unregister();
+        }
     }
 
     public int undoScheduled()
@@ -99,17 +115,43 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
 
     public UndoList getLast(Block target)
     {
+        // Lists in this queue are indexed by area, newest has the highest sequence
+        UndoList last = null;
+        for (UndoList checkList : UndoListIndex.getUndoLists(target))
+        {
+            if (checkList.undoQueue == this && (last == null || checkList.getSequence() > last.getSequence()))
+            {
+                last = checkList;
+            }
+        }
+
+        return last;
+    }
+
+    /**
+     * Create a batch that rolls back this Mage's changes inside an area.
+     *
+     * Unlike undoing whole lists, this leaves blocks outside of the area alone.
+     * The batch must be added to a Mage to run.
+     *
+     * @param worldName The world to roll back in
+     * @param area The area to roll back
+     * @param since Only lists modified at or after this time are rolled back, or 0 for all
+     * @return A new RollbackBatch
+     */
+    public RollbackBatch rollback(String worldName, BoundingBox area, long since)
+    {
+        List<UndoList> lists = new ArrayList<UndoList>();
         UndoList checkList = head;
         while (checkList != null)
         {
-            if (checkList.contains(target))
+            if (worldName.equals(checkList.getWorldName()))
             {
-                return checkList;
+                lists.add(checkList);
             }
             checkList = checkList.getPrevious();
         }
-
-        return null;
+        return new RollbackBatch(owner.getController(), lists, area, since);
     }
 
     public void setMaxSize(int size)
@@ -207,13 +249,30 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
     {
         try {
             if (data == null) return;
+            unloadStale();
             List<com.elmakers.mine.bukkit.api.block.UndoList> undoList = data.getBlockList();
             if (undoList != null) {
                 for (com.elmakers.mine.bukkit.api.block.UndoList list : undoList) {
                     add(list);
                     if (list.isScheduled())
                     {
-                        owner.getController().scheduleUndo(list);
+                        // Scheduled times aren't saved, so the time to live starts over
+                        // UndoLists schedule themselves with the UndoScheduler
+                        if (list instanceof UndoList)
+                        {
+                            if (list.getScheduledTime() == 0)
+                            {
+                                ((UndoList)list).updateScheduledUndo();
+                            }
+                            else
+                            {
+                                UndoScheduler.schedule((UndoList)list);
+                            }
+                        }
+                        else
+                        {
+                            owner.getController().scheduleUndo(list);
+                        }
                     }
                 }
             }
@@ -236,6 +295,7 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
                 if (maxSize > 0 && list.size() > maxSize) {
                     discarded++;
                 } else {
+                    list.setSaveFormat(saveFormat);
                     undoList.add(list);
                 }
 
@@ -251,11 +311,119 @@ public class UndoQueue implements com.elmakers.mine.bukkit.api.block.UndoQueue
         }
     }
 
+    /**
+     * Release every list in this queue, once its Mage has been saved for the last
+     * time and is being unloaded.
+     *
+     * Queued lists are held by the global UndoListIndex and UndoScheduler, and
+     * spilled lists by the UndoMemoryGovernor, so they can not be collected until
+     * they leave the queue. Nothing is undone or committed: scheduled lists are
+     * dropped from the schedule, spilled data is discarded, the queue is dropped
+     * from UndoMetrics and left empty.
+     */
+    public void unload()
+    {
+        UndoList nextList = tail;
+        while (nextList != null) {
+            UndoList list = nextList;
+            nextList = nextList.getNext();
+            UndoScheduler.cancel(list);
+            list.discardSpill();
+            list.unlink();
+        }
+
+        head = null;
+        tail = null;
+        size = 0;
+        unregister();
+
+        // Estimates can drift, don't rely on them coming back to exactly zero
+        UndoMetrics.remove(this);
+        estimatedMemory = 0;
+    }
+
+    /**
+     * Unload the queue of an earlier copy of this Mage that was never unloaded, so
+     * its lists are not indexed alongside the ones being loaded.
+     */
+    private void unloadStale()
+    {
+        if (owner == null || owner.getId() == null) return;
+        UndoQueue queue = queues.get(owner.getId());
+        if (queue != null && queue != this && queue.owner != owner)
+        {
+            queue.unload();
+        }
+    }
+
+    /**
+     * Record this as the live queue of its Mage, while it holds any lists.
+     */
+    private void register()
+    {
+        if (owner == null || owner.getId() == null) return;
+        UndoQueue queue = queues.get(owner.getId());
+        if (queue == null || queue.owner == owner)
+        {
+            queues.put(owner.getId(), this);
+        }
+    }
+
+    private void unregister()
+    {
+        if (owner == null || owner.getId() == null) return;
+        if (queues.get(owner.getId()) == this)
+        {
+            queues.remove(owner.getId());
+        }
+    }
+
+    /**
+     * Set the encoding used for block data when this queue is saved.
+     *
+     * Undo data in any format can always be loaded.
+     *
+     * @param saveFormat The format to save block lists in
+     */
+    public void setSaveFormat(BlockListFormat saveFormat)
+    {
+        this.saveFormat = saveFormat == null ? BlockListFormat.LEGACY : saveFormat;
+    }
+
+    public BlockListFormat getSaveFormat()
+    {
+        return saveFormat;
+    }
+
     public int getSize()
     {
         return size;
     }
 
+    public Mage getOwner()
+    {
+        return owner;
+    }
+
+    /**
+     * Estimate the heap memory used by the lists in this queue.
+     *
+     * This is the sum of UndoList.getEstimatedMemory over the queue, kept up to date
+     * by the lists themselves.
+     *
+     * @return The estimate, in bytes
+     */
+    public long getEstimatedMemory()
+    {
+        return estimatedMemory;
+    }
+
+    void adjustMemory(long delta)
+    {
+        estimatedMemory += delta;
+        UndoMetrics.adjust(this, delta);
+    }
+
     @Override
     public boolean commit()
     {
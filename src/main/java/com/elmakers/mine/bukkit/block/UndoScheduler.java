@@ -0,0 +1,304 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A hierarchical timing wheel of UndoLists waiting for their scheduled undo.
+ *
+ * Time is counted in server ticks (50ms). The first wheel has a slot for each of
+ * the next 256 ticks, and each wheel above it has 64 slots, each covering a whole
+ * turn of the wheel below. When a lower wheel wraps around, the next slot of the
+ * wheel above is emptied down into it. Lists due further out than the top wheel
+ * covers wait in an overflow list until it wraps.
+ *
+ * Scheduling and cancelling a list are constant time, and advancing only looks at
+ * the slots for the ticks that passed, so idle scheduled lists cost nothing.
+ *
+ * UndoLists add, move and remove themselves as their schedule changes. The wheel
+ * is advanced by a task that calls undoDue every tick. The task is started with the
+ * plugin of the first list scheduled, and stops itself once nothing is scheduled.
+ * Lists with no Mage have no plugin, so anything that schedules those should call
+ * start first. The plugin should call stop when disabling.
+ */
+public class UndoScheduler {
+    public static final long TICK_MILLIS = 50;
+
+    private static final int ROOT_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 4;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final long MAX_DELAY = 1L << (ROOT_BITS + LEVEL_BITS * (LEVELS - 1));
+
+    private static final Entry[][] wheels = new Entry[LEVELS][];
+    private static final Entry overflow = new Entry(null, 0);
+    private static final Map<UndoList, Entry> scheduled = new IdentityHashMap<UndoList, Entry>();
+
+    // The last tick that has been fired, -1 until first used
+    private static long currentTick = -1;
+
+    private static BukkitTask task;
+
+    static {
+        for (int level = 0; level < LEVELS; level++) {
+            int size = level == 0 ? ROOT_SIZE : LEVEL_SIZE;
+            wheels[level] = new Entry[size];
+            for (int slot = 0; slot < size; slot++) {
+                wheels[level][slot] = new Entry(null, 0);
+            }
+        }
+    }
+
+    /**
+     * A scheduled list, kept in a circular doubly-linked list per slot. Each slot
+     * has an empty head entry.
+     */
+    private static class Entry {
+        private final UndoList list;
+        private long dueTick;
+        private Entry previous = this;
+        private Entry next = this;
+
+        private Entry(UndoList list, long dueTick) {
+            this.list = list;
+            this.dueTick = dueTick;
+        }
+
+        private void append(Entry entry) {
+            entry.previous = previous;
+            entry.next = this;
+            previous.next = entry;
+            previous = entry;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+
+        private boolean isEmpty() {
+            return next == this;
+        }
+    }
+
+    private static long toTick(long millis) {
+        return (millis + TICK_MILLIS - 1) / TICK_MILLIS;
+    }
+
+    private static void startClock(long now) {
+        if (currentTick < 0) {
+            currentTick = now / TICK_MILLIS;
+        }
+    }
+
+    /**
+     * Schedule a list to undo at its scheduled time, or move it if already scheduled.
+     *
+     * @param list The list to schedule
+     */
+    public static void schedule(UndoList list) {
+        schedule(list, list.getScheduledTime(), System.currentTimeMillis());
+        start(list.getPlugin());
+    }
+
+    /**
+     * Start the task that undoes lists as they come due, if it is not running.
+     *
+     * @param plugin The plugin to run the task with
+     */
+    public static void start(Plugin plugin) {
+        if (task != null || plugin == null || !plugin.isEnabled()) return;
+        task = Bukkit.getScheduler().runTaskTimer(plugin, new Runnable() {
+            @Override
+            public void run() {
+                undoDue();
+                if (scheduled.isEmpty()) {
+                    stop();
+                }
+            }
+        }, 1, 1);
+    }
+
+    /**
+     * Stop the task, such as when the plugin is disabling. Lists stay scheduled,
+     * and the task starts again with the next list scheduled.
+     */
+    public static void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    static void schedule(UndoList list, long scheduledTime, long now) {
+        startClock(now);
+        Entry entry = scheduled.get(list);
+        if (entry == null) {
+            entry = new Entry(list, 0);
+            scheduled.put(list, entry);
+        } else {
+            entry.unlink();
+        }
+        entry.dueTick = toTick(scheduledTime);
+        insert(entry);
+    }
+
+    /**
+     * Remove a list from the schedule.
+     *
+     * @param list The list to remove
+     * @return true if the list was scheduled
+     */
+    public static boolean cancel(UndoList list) {
+        Entry entry = scheduled.remove(list);
+        if (entry == null) return false;
+        entry.unlink();
+        return true;
+    }
+
+    public static boolean isScheduled(UndoList list) {
+        return scheduled.containsKey(list);
+    }
+
+    public static int size() {
+        return scheduled.size();
+    }
+
+    public static void clear() {
+        for (Entry entry : scheduled.values()) {
+            entry.unlink();
+        }
+        scheduled.clear();
+    }
+
+    /**
+     * Clear the schedule and forget the current time, so the next call starts the
+     * wheel over.
+     */
+    static void reset() {
+        clear();
+        currentTick = -1;
+    }
+
+    private static void insert(Entry entry) {
+        // Anything overdue fires on the next tick
+        if (entry.dueTick <= currentTick) {
+            entry.dueTick = currentTick + 1;
+        }
+        long delay = entry.dueTick - currentTick;
+        if (delay > MAX_DELAY) {
+            overflow.append(entry);
+            return;
+        }
+        int level = 0;
+        int shift = 0;
+        long range = ROOT_SIZE;
+        while (delay > range) {
+            shift = ROOT_BITS + LEVEL_BITS * level;
+            level++;
+            range <<= LEVEL_BITS;
+        }
+        Entry[] wheel = wheels[level];
+        wheel[(int)((entry.dueTick >>> shift) & (wheel.length - 1))].append(entry);
+    }
+
+    /**
+     * Move every entry in a slot back through insert, which puts each of them in a
+     * lower wheel now that they are closer to due.
+     */
+    private static void cascade(Entry head) {
+        if (head.isEmpty()) return;
+
+        // Detach the whole slot first, entries may be put back in the same one
+        Entry entry = head.next;
+        head.previous.next = null;
+        head.previous = head;
+        head.next = head;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.previous = entry;
+            entry.next = entry;
+            insert(entry);
+            entry = next;
+        }
+    }
+
+    /**
+     * Advance the wheel to the current time, removing every list that is due.
+     *
+     * @param now The current time, in milliseconds
+     * @return The lists that are due, in the order they came due
+     */
+    public static List<UndoList> getDue(long now) {
+        startClock(now);
+        long nowTick = now / TICK_MILLIS;
+        if (scheduled.isEmpty()) {
+            currentTick = Math.max(currentTick, nowTick);
+            return Collections.emptyList();
+        }
+
+        List<UndoList> due = null;
+        while (currentTick < nowTick) {
+            long tick = currentTick + 1;
+
+            // Empty the next slot of each wheel that wraps on this tick, top down
+            if ((tick & (ROOT_SIZE - 1)) == 0) {
+                int wrappedLevels = 1;
+                long higher = tick >>> ROOT_BITS;
+                while (wrappedLevels < LEVELS - 1 && (higher & (LEVEL_SIZE - 1)) == 0) {
+                    higher >>>= LEVEL_BITS;
+                    wrappedLevels++;
+                }
+                if (wrappedLevels == LEVELS - 1 && (higher & (LEVEL_SIZE - 1)) == 0) {
+                    cascade(overflow);
+                }
+                for (int level = wrappedLevels; level >= 1; level--) {
+                    int shift = ROOT_BITS + LEVEL_BITS * (level - 1);
+                    cascade(wheels[level][(int)((tick >>> shift) & (LEVEL_SIZE - 1))]);
+                }
+            }
+
+            currentTick = tick;
+            Entry head = wheels[0][(int)(tick & (ROOT_SIZE - 1))];
+            Entry entry = head.next;
+            while (entry != head) {
+                Entry next = entry.next;
+                if (entry.dueTick <= tick) {
+                    entry.unlink();
+                    scheduled.remove(entry.list);
+                    if (due == null) due = new ArrayList<UndoList>();
+                    due.add(entry.list);
+                }
+                entry = next;
+            }
+
+            if (scheduled.isEmpty()) {
+                currentTick = nowTick;
+            }
+        }
+        return due == null ? Collections.<UndoList>emptyList() : due;
+    }
+
+    /**
+     * Undo every list whose scheduled time has passed.
+     *
+     * @return The number of lists undone
+     */
+    public static int undoDue() {
+        List<UndoList> due = getDue(System.currentTimeMillis());
+        for (UndoList list : due) {
+            list.undoScheduled(false);
+        }
+        return due.size();
+    }
+}
@@ -0,0 +1,463 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.util.BlockVector;
+
+import com.elmakers.mine.bukkit.utility.Base64Coder;
+import com.elmakers.mine.bukkit.utility.LongHashMap;
+import com.elmakers.mine.bukkit.utility.LongIntHashMap;
+
+/**
+ * A snapshot of a whole cuboid of blocks, for undo.
+ *
+ * Rather than a BlockData per block, this stores a palette of the distinct
+ * material and data pairs in the volume, and one packed palette index per block,
+ * using as few bits as the palette needs. A 64x64x64 volume of stone and air takes
+ * 32KB this way.
+ *
+ * Blocks that hold tile entity data (chests, signs and so on) are captured in full,
+ * as sparse overrides on top of the palette.
+ *
+ * A snapshot may be masked, so that it only covers some of the blocks in its cuboid,
+ * such as the ones a fill actually replaced. Blocks outside the mask are left alone
+ * on undo.
+ *
+ * Blocks covered by a snapshot are not tracked in the global modified block registry,
+ * so later changes to the same blocks by other undo lists are not relinked, and undo
+ * will overwrite them. Snapshots are only meant for volumes that nothing else is
+ * editing, use UndoList.add for blocks that may be shared.
+ */
+public class VolumeSnapshot {
+    private static final int VERSION = 2;
+    private static final Material[] MATERIALS = Material.values();
+    private static final Set<Material> TILE_ENTITIES = MaterialSet.of(
+        Material.CHEST, Material.TRAPPED_CHEST, Material.FURNACE, Material.BURNING_FURNACE,
+        Material.DISPENSER, Material.DROPPER, Material.HOPPER, Material.BREWING_STAND,
+        Material.SIGN_POST, Material.WALL_SIGN, Material.COMMAND, Material.SKULL,
+        Material.MOB_SPAWNER, Material.FLOWER_POT, Material.STANDING_BANNER, Material.WALL_BANNER,
+        Material.JUKEBOX, Material.BEACON
+    );
+
+    private final String worldName;
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    // Each palette entry is a Material ordinal shifted left 8 bits, plus the data value
+    private int[] palette;
+    private int bits;
+    private long[] packed;
+    private LongHashMap<BlockData> overrides;
+
+    // One bit per block, set for blocks the snapshot covers, or null for all of them
+    private long[] mask;
+    private int maskedSize;
+
+    // Undo progress
+    private int cursor = 0;
+
+    private VolumeSnapshot(String worldName, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        this.worldName = worldName;
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Capture the current state of a cuboid.
+     *
+     * Chunks must be loaded first!
+     *
+     * @param world The world to capture from
+     * @param minX The minimum X coordinate
+     * @param minY The minimum Y coordinate
+     * @param minZ The minimum Z coordinate
+     * @param sizeX The number of blocks along X
+     * @param sizeY The number of blocks along Y
+     * @param sizeZ The number of blocks along Z
+     * @return A new snapshot
+     */
+    public static VolumeSnapshot capture(World world, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ) {
+        return capture(world, minX, minY, minZ, sizeX, sizeY, sizeZ, null, null);
+    }
+
+    /**
+     * Capture only the blocks in a cuboid that filling it would change.
+     *
+     * Chunks must be loaded first!
+     *
+     * @param world The world to capture from
+     * @param minX The minimum X coordinate
+     * @param minY The minimum Y coordinate
+     * @param minZ The minimum Z coordinate
+     * @param sizeX The number of blocks along X
+     * @param sizeY The number of blocks along Y
+     * @param sizeZ The number of blocks along Z
+     * @param replaceable The materials the fill may replace, or null for any
+     * @param target The state being filled with, blocks that already match are skipped, or null for none
+     * @return A new snapshot, masked to the blocks that will change
+     */
+    @SuppressWarnings("deprecation")
+    public static VolumeSnapshot capture(World world, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ, Set<Material> replaceable, MaterialAndData target) {
+        VolumeSnapshot snapshot = new VolumeSnapshot(world.getName(), minX, minY, minZ,
+            Math.max(0, sizeX), Math.max(0, sizeY), Math.max(0, sizeZ));
+        int volume = snapshot.size();
+        int[] indices = new int[volume];
+        boolean masked = replaceable != null || target != null;
+        long[] mask = masked ? new long[(volume + 63) >> 6] : null;
+        int maskedSize = 0;
+        PaletteBuilder palette = new PaletteBuilder();
+        int index = 0;
+        for (int y = 0; y < snapshot.sizeY; y++) {
+            for (int z = 0; z < snapshot.sizeZ; z++) {
+                for (int x = 0; x < snapshot.sizeX; x++) {
+                    Block block = world.getBlockAt(minX + x, minY + y, minZ + z);
+                    Material material = block.getType();
+                    if (masked) {
+                        if ((replaceable != null && !replaceable.contains(material)) || (target != null && !target.isDifferent(block))) {
+                            // Not covered, so share whichever palette entry came last
+                            indices[index++] = Math.max(0, palette.lastIndex);
+                            continue;
+                        }
+                        mask[index >> 6] |= 1L << (index & 63);
+                        maskedSize++;
+                    }
+                    if (TILE_ENTITIES.contains(material)) {
+                        if (snapshot.overrides == null) {
+                            snapshot.overrides = new LongHashMap<BlockData>();
+                        }
+                        BlockData blockData = new BlockData(block);
+                        snapshot.overrides.put(blockData.getId(), blockData);
+                    }
+                    indices[index++] = palette.getIndex((material.ordinal() << 8) | (block.getData() & 0xFF));
+                }
+            }
+        }
+        if (masked) {
+            if (palette.size == 0) {
+                palette.getIndex(Material.AIR.ordinal() << 8);
+            }
+            snapshot.mask = mask;
+            snapshot.maskedSize = maskedSize;
+        }
+        snapshot.pack(palette.toArray(), indices);
+        return snapshot;
+    }
+
+    /**
+     * Assigns palette indices in the order entries are first seen.
+     */
+    private static class PaletteBuilder {
+        private final LongIntHashMap indices = new LongIntHashMap();
+        private int[] entries = new int[16];
+        private int size = 0;
+        private int lastEntry = -1;
+        private int lastIndex = -1;
+
+        public int getIndex(int entry) {
+            if (entry == lastEntry) return lastIndex;
+            int index = indices.get(entry, -1);
+            if (index < 0) {
+                index = size++;
+                if (index >= entries.length) {
+                    int[] newEntries = new int[entries.length * 2];
+                    System.arraycopy(entries, 0, newEntries, 0, entries.length);
+                    entries = newEntries;
+                }
+                entries[index] = entry;
+                indices.put(entry, index);
+            }
+            lastEntry = entry;
+            lastIndex = index;
+            return index;
+        }
+
+        public int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(entries, 0, result, 0, size);
+            return result;
+        }
+    }
+
+    private void pack(int[] palette, int[] indices) {
+        this.palette = palette;
+        bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, palette.length - 1)));
+        int perLong = 64 / bits;
+        packed = new long[(indices.length + perLong - 1) / perLong];
+        for (int i = 0; i < indices.length; i++) {
+            packed[i / perLong] |= ((long)indices[i]) << ((i % perLong) * bits);
+        }
+    }
+
+    private boolean isCovered(int index) {
+        return mask == null || (mask[index >> 6] & (1L << (index & 63))) != 0;
+    }
+
+    private int getPaletteIndex(int index) {
+        int perLong = 64 / bits;
+        return (int)((packed[index / perLong] >>> ((index % perLong) * bits)) & ((1L << bits) - 1));
+    }
+
+    public Material getMaterial(int index) {
+        int ordinal = palette[getPaletteIndex(index)] >> 8;
+        return ordinal < MATERIALS.length ? MATERIALS[ordinal] : null;
+    }
+
+    public byte getData(int index) {
+        return (byte)(palette[getPaletteIndex(index)] & 0xFF);
+    }
+
+    /**
+     * Restore blocks from this snapshot, picking up where the last call left off.
+     *
+     * Blocks are restored from the bottom layer up.
+     *
+     * @param maxBlocks The maximum number of blocks to restore
+     * @param applyPhysics Whether to apply physics when restoring
+     * @return The number of blocks processed, which will be less than maxBlocks if
+     *   this snapshot is finished or a chunk needs to be loaded first
+     */
+    @SuppressWarnings("deprecation")
+    public int undo(int maxBlocks, boolean applyPhysics) {
+        World world = Bukkit.getWorld(worldName);
+        int volume = size();
+        if (world == null) {
+            int skipped = volume - cursor;
+            cursor = volume;
+            return skipped;
+        }
+        int processed = 0;
+        int lastChunkX = Integer.MIN_VALUE;
+        int lastChunkZ = Integer.MIN_VALUE;
+        while (cursor < volume && processed < maxBlocks) {
+            if (!isCovered(cursor)) {
+                cursor++;
+                processed++;
+                continue;
+            }
+            int x = minX + cursor % sizeX;
+            int z = minZ + (cursor / sizeX) % sizeZ;
+            int y = minY + cursor / (sizeX * sizeZ);
+            int chunkX = x >> 4;
+            int chunkZ = z >> 4;
+            if (chunkX != lastChunkX || chunkZ != lastChunkZ) {
+                if (!world.isChunkLoaded(chunkX, chunkZ)) {
+                    world.loadChunk(chunkX, chunkZ);
+                    break;
+                }
+                lastChunkX = chunkX;
+                lastChunkZ = chunkZ;
+            }
+
+            Block block = world.getBlockAt(x, y, z);
+            BlockData override = overrides == null ? null : overrides.get(BlockKey.toKey(block));
+            if (override != null) {
+                if (override.isDifferent(block)) {
+                    override.modify(block, applyPhysics);
+                }
+            } else {
+                Material material = getMaterial(cursor);
+                byte data = getData(cursor);
+                if (material != null && (block.getType() != material || block.getData() != data)) {
+                    block.setTypeIdAndData(material.getId(), data, applyPhysics);
+                }
+            }
+            cursor++;
+            processed++;
+        }
+        return processed;
+    }
+
+    public boolean isFinished() {
+        return cursor >= size();
+    }
+
+    public boolean contains(String worldName, int x, int y, int z) {
+        return x >= minX && y >= minY && z >= minZ
+            && x < minX + sizeX && y < minY + sizeY && z < minZ + sizeZ
+            && this.worldName.equals(worldName)
+            && isCovered((x - minX) + (z - minZ) * sizeX + (y - minY) * sizeX * sizeZ);
+    }
+
+    public boolean contains(Block block) {
+        return contains(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public BlockVector getMin() {
+        return new BlockVector(minX, minY, minZ);
+    }
+
+    public BlockVector getMax() {
+        return new BlockVector(minX + sizeX - 1, minY + sizeY - 1, minZ + sizeZ - 1);
+    }
+
+    public int size() {
+        return sizeX * sizeY * sizeZ;
+    }
+
+    /**
+     * @return The number of blocks this snapshot covers, which is less than size if it is masked
+     */
+    public int getCoveredSize() {
+        return mask == null ? size() : maskedSize;
+    }
+
+    public boolean isMasked() {
+        return mask != null;
+    }
+
+    public int remaining() {
+        return size() - cursor;
+    }
+
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    /**
+     * @return The approximate memory used by this snapshot, in bytes
+     */
+    public long getEstimatedMemory() {
+        long bytes = 64 + palette.length * 4 + packed.length * 8;
+        if (mask != null) {
+            bytes += mask.length * 8;
+        }
+        if (overrides != null) {
+            bytes += overrides.size() * BlockData.ESTIMATED_MEMORY;
+        }
+        return bytes;
+    }
+
+    /**
+     * Encode this snapshot for saving.
+     *
+     * Override blocks keep only their material and data, as with other saved blocks.
+     *
+     * @return A base64 string
+     * @throws IOException If encoding fails
+     */
+    public String encodeString() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(VERSION);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        out.writeUTF(worldName);
+        out.writeInt(minX);
+        out.writeInt(minY);
+        out.writeInt(minZ);
+        out.writeInt(sizeX);
+        out.writeInt(sizeY);
+        out.writeInt(sizeZ);
+        out.writeInt(cursor);
+        out.writeInt(palette.length);
+        for (int entry : palette) {
+            out.writeUTF(MATERIALS[entry >> 8].name());
+            out.writeByte(entry & 0xFF);
+        }
+        out.writeInt(packed.length);
+        for (long value : packed) {
+            out.writeLong(value);
+        }
+        out.writeInt(mask == null ? -1 : mask.length);
+        if (mask != null) {
+            for (long value : mask) {
+                out.writeLong(value);
+            }
+        }
+        out.writeInt(overrides == null ? 0 : overrides.size());
+        if (overrides != null) {
+            for (BlockData override : overrides.values()) {
+                BlockVector position = override.getPosition();
+                Short data = override.getData();
+                out.writeInt(position.getBlockX());
+                out.writeInt(position.getBlockY());
+                out.writeInt(position.getBlockZ());
+                out.writeUTF(override.getMaterial().name());
+                out.writeShort(data == null ? 0 : data);
+            }
+        }
+        out.close();
+        return new String(Base64Coder.encode(bytes.toByteArray()));
+    }
+
+    public static VolumeSnapshot decodeString(String encoded) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Base64Coder.decode(encoded);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid volume encoding: " + ex.getMessage());
+        }
+        // Version 1 had no mask
+        int version = bytes.length < 1 ? 0 : bytes[0];
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unknown volume data version");
+        }
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1)));
+        try {
+            String worldName = in.readUTF();
+            VolumeSnapshot snapshot = new VolumeSnapshot(worldName, in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            snapshot.cursor = in.readInt();
+            int paletteSize = in.readInt();
+            snapshot.palette = new int[paletteSize];
+            for (int i = 0; i < paletteSize; i++) {
+                Material material = Material.getMaterial(in.readUTF());
+                int data = in.readByte() & 0xFF;
+                snapshot.palette[i] = ((material == null ? Material.AIR : material).ordinal() << 8) | data;
+            }
+            snapshot.bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, paletteSize - 1)));
+            snapshot.packed = new long[in.readInt()];
+            for (int i = 0; i < snapshot.packed.length; i++) {
+                snapshot.packed[i] = in.readLong();
+            }
+            int maskLength = version >= 2 ? in.readInt() : -1;
+            if (maskLength >= 0) {
+                if (maskLength != (snapshot.size() + 63) >> 6) {
+                    throw new IOException("Volume mask does not match its size");
+                }
+                snapshot.mask = new long[maskLength];
+                for (int i = 0; i < maskLength; i++) {
+                    snapshot.mask[i] = in.readLong();
+                    snapshot.maskedSize += Long.bitCount(snapshot.mask[i]);
+                }
+            }
+            int overrideCount = in.readInt();
+            for (int i = 0; i < overrideCount; i++) {
+                int x = in.readInt();
+                int y = in.readInt();
+                int z = in.readInt();
+                Material material = Material.getMaterial(in.readUTF());
+                short data = in.readShort();
+                if (material == null) continue;
+                if (snapshot.overrides == null) {
+                    snapshot.overrides = new LongHashMap<BlockData>();
+                }
+                BlockData override = new BlockData(x, y, z, worldName, material, (byte)data);
+                snapshot.overrides.put(override.getId(), override);
+            }
+            return snapshot;
+        } finally {
+            in.close();
+        }
+    }
+}
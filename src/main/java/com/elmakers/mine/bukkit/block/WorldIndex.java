@@ -0,0 +1,81 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+/**
+ * Assigns a small integer index to each world, by name, for use in packed block keys.
+ *
+ * Indices are handed out on first use and are never reused for the life of the server,
+ * so a world that is unloaded and loaded again keeps its index, and every world has
+ * its own index.
+ *
+ * Only the first BlockKey.PACKED_WORLDS indices fit into a packed BlockKey. Blocks in
+ * later worlds get interned keys, which are slower to decode but still never collide.
+ */
+public class WorldIndex {
+    private static final Map<String, Integer> indices = new HashMap<String, Integer>();
+    private static final List<String> names = new ArrayList<String>();
+    private static volatile Lookup lastLookup = null;
+
+    // Immutable so it can be swapped in without locking
+    private static class Lookup {
+        private final String name;
+        private final int index;
+
+        private Lookup(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    public static int getIndex(World world) {
+        return getIndex(world.getName());
+    }
+
+    public static int getIndex(String worldName) {
+        if (worldName == null) worldName = "";
+
+        // Blocks are almost always looked up in runs from the same world, and
+        // World.getName hands back the same String each time, so check that first.
+        Lookup last = lastLookup;
+        if (last != null && last.name == worldName) {
+            return last.index;
+        }
+
+        int index = lookup(worldName);
+        lastLookup = new Lookup(worldName, index);
+        return index;
+    }
+
+    private static synchronized int lookup(String worldName) {
+        Integer index = indices.get(worldName);
+        if (index != null) {
+            return index;
+        }
+
+        int newIndex = names.size();
+        names.add(worldName);
+        indices.put(worldName, newIndex);
+        return newIndex;
+    }
+
+    public static synchronized String getWorldName(int index) {
+        if (index < 0 || index >= names.size()) return null;
+        return names.get(index);
+    }
+
+    public static World getWorld(int index) {
+        String worldName = getWorldName(index);
+        return worldName == null ? null : Bukkit.getWorld(worldName);
+    }
+
+    public static synchronized int size() {
+        return indices.size();
+    }
+}
@@ -2,9 +2,9 @@ package com.elmakers.mine.bukkit.spell;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Set;
 
+import com.elmakers.mine.bukkit.block.MaterialSet;
 import com.elmakers.mine.bukkit.block.UndoList;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
@@ -79,7 +79,7 @@ public abstract class BlockSpell extends UndoableSpell {
 
     protected void addDestructible(Material material) {
         if (destructible == null) {
-            destructible = new HashSet<Material>(controller.getDestructibleMaterials());
+            destructible = MaterialSet.copyOf(controller.getDestructibleMaterials());
         }
         destructible.add(material);
     }
@@ -98,14 +98,14 @@ public abstract class BlockSpell extends UndoableSpell {
         if (parameters.contains("destructible")) {
             // This always needs to be a copy since it can be modified by addDestructible
             // Kind of a hack for Automata.
-            destructible = new HashSet<Material>(controller.getMaterialSet(parameters.getString("destructible")));
+            destructible = MaterialSet.copyOf(controller.getMaterialSet(parameters.getString("destructible")));
         }
 
         if (parameters.getBoolean("destructible_override", false)) {
             String destructibleKey = controller.getDestructibleMaterials(mage, mage.getLocation());
             if (destructibleKey != null) {
                 if (destructible == null) {
-                    destructible = new HashSet<Material>();
+                    destructible = new MaterialSet();
                 }
                 destructible.addAll(controller.getMaterialSet(destructibleKey));
             }
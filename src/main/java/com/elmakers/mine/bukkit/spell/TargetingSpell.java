@@ -5,6 +5,7 @@ import com.elmakers.mine.bukkit.api.magic.Mage;
 import com.elmakers.mine.bukkit.api.spell.TargetType;
 import com.elmakers.mine.bukkit.block.MaterialAndData;
 import com.elmakers.mine.bukkit.block.MaterialBrush;
+import com.elmakers.mine.bukkit.block.MaterialSet;
 import com.elmakers.mine.bukkit.utility.ConfigurationUtils;
 import com.elmakers.mine.bukkit.utility.Target;
 import com.elmakers.mine.bukkit.utility.Targeting;
@@ -58,8 +59,8 @@ public abstract class TargetingSpell extends BaseSpell {
     private boolean                             allowMaxRange           = false;
     private boolean                             bypassBackfire          = false;
 
-    private Set<Material>                       targetThroughMaterials  = new HashSet<Material>();
-    private Set<Material>                       targetableMaterials     = null;
+    private MaterialSet                         targetThroughMaterials  = new MaterialSet();
+    private MaterialSet                         targetableMaterials     = null;
     private Set<Material>                       reflectiveMaterials     = null;
     private boolean                             reverseTargeting        = false;
     private boolean                             originAtTarget          = false;
@@ -491,8 +492,7 @@ public abstract class TargetingSpell extends BaseSpell {
         }
 
         if (parameters.contains("targetable")) {
-            targetableMaterials = new HashSet<Material>();
-            targetableMaterials.addAll(controller.getMaterialSet(parameters.getString("targetable")));
+            targetableMaterials = MaterialSet.copyOf(controller.getMaterialSet(parameters.getString("targetable")));
         } else {
             targetableMaterials = null;
         }
@@ -508,7 +508,7 @@ public abstract class TargetingSpell extends BaseSpell {
                 Set<Material> currentReflective = reflectiveMaterials;
                 reflectiveMaterials = controller.getMaterialSet(reflectiveKey);
                 if (currentReflective != null) {
-                    reflectiveMaterials = new HashSet<Material>(reflectiveMaterials);
+                    reflectiveMaterials = MaterialSet.copyOf(reflectiveMaterials);
                     reflectiveMaterials.addAll(currentReflective);
                 }
             }
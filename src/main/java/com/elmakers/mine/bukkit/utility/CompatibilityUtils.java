@@ -46,7 +46,9 @@ import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -79,6 +81,11 @@ public class CompatibilityUtils extends NMSUtils {
     private static double hitboxSneakScaleY = 0.75;
     private static BoundingBox defaultHitbox;
 
+    // Some servers (Paper) can load chunks off the main thread
+    private static boolean asyncChunksBound = false;
+    private static Method class_World_getChunkAtAsyncMethod;
+    private static Object asyncChunkCallback;
+
     public static void applyPotionEffects(LivingEntity entity, Collection<PotionEffect> effects) {
         for (PotionEffect effect: effects) {
             applyPotionEffect(entity, effect);
@@ -1080,4 +1087,64 @@ public class CompatibilityUtils extends NMSUtils {
         }
         return entity;
     }
+
+    private static void bindAsyncChunks() {
+        asyncChunksBound = true;
+        try {
+            Class<?> callbackClass = Class.forName("org.bukkit.World$ChunkLoadCallback");
+            class_World_getChunkAtAsyncMethod = World.class.getMethod("getChunkAtAsync", Integer.TYPE, Integer.TYPE, callbackClass);
+            asyncChunkCallback = Proxy.newProxyInstance(callbackClass.getClassLoader(), new Class<?>[] { callbackClass }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    // The server may store or log the callback, so Object methods need real answers
+                    if (method.getDeclaringClass() == Object.class) {
+                        String name = method.getName();
+                        if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (name.equals("equals")) {
+                            return args[0] == proxy;
+                        }
+                        if (name.equals("toString")) {
+                            return "MagicLib ChunkLoadCallback";
+                        }
+                    }
+
+                    // Nothing to do here, callers check back on the chunk later.
+                    return null;
+                }
+            });
+        } catch (Throwable ex) {
+            class_World_getChunkAtAsyncMethod = null;
+            asyncChunkCallback = null;
+        }
+    }
+
+    public static boolean canLoadChunksAsync() {
+        if (!asyncChunksBound) {
+            bindAsyncChunks();
+        }
+        return class_World_getChunkAtAsyncMethod != null;
+    }
+
+    /**
+     * Ask the server to load a chunk without waiting for it.
+     *
+     * This only works on servers that support asynchronous chunk loading, see canLoadChunksAsync.
+     *
+     * @param world The world to load the chunk in
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return true if the chunk is loaded or a load was requested
+     */
+    public static boolean loadChunkAsync(World world, int chunkX, int chunkZ) {
+        if (world.isChunkLoaded(chunkX, chunkZ)) return true;
+        if (!canLoadChunksAsync()) return false;
+        try {
+            class_World_getChunkAtAsyncMethod.invoke(world, chunkX, chunkZ, asyncChunkCallback);
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
 }
@@ -20,6 +20,7 @@ import org.bukkit.configuration.MemoryConfiguration;
 import org.bukkit.util.Vector;
 
 import com.elmakers.mine.bukkit.block.MaterialAndData;
+import com.elmakers.mine.bukkit.block.MaterialSet;
 
 public class ConfigurationUtils extends ConfigUtils {
 
@@ -214,33 +215,13 @@ public class ConfigurationUtils extends ConfigUtils {
              return null;
          }
 
-         Set<Material> materials = new HashSet<Material>();
-         for (String matName : materialData)
-         {
-             Material material = toMaterial(matName);
-             if (material != null) {
-                 materials.add(material);
-             }
-         }
-
-         return materials;
+         return MaterialSet.parse(materialData);
     }
 
     public static Set<Material> parseMaterials(String csv)
     {
-         String[] nameList = StringUtils.split(csv, ',');
-         Set<Material> materials = new HashSet<Material>();
-
-         for (String matName : nameList)
-         {
-             Material material = toMaterial(matName);
-             if (material != null) {
-                 materials.add(material);
-             }
-         }
-
-         return materials;
-     }
+         return MaterialSet.parse(csv);
+    }
 
     @SuppressWarnings("unchecked")
     protected void combine(Map<Object, Object> to, Map<? extends Object, Object> from) {
@@ -0,0 +1,273 @@
+package com.elmakers.mine.bukkit.utility;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An open-addressing hash map of primitive longs to primitive doubles.
+ *
+ * This is the double-valued counterpart to LongHashMap, used for the reflective
+ * and breakable block registries which are checked on every step of a targeting ray.
+ *
+ * The boxed Map interface is still implemented for compatibility, but hot paths should
+ * use the primitive methods. Iterators support removal, and entries write through
+ * to the map.
+ */
+public class LongDoubleHashMap extends AbstractMap<Long, Double> {
+    private long[] keys;
+    private double[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    private int modCount;
+
+    public LongDoubleHashMap() {
+        this(0);
+    }
+
+    public LongDoubleHashMap(int expectedSize) {
+        allocate(LongHashMap.tableSize(expectedSize));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new double[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = (int)(capacity * 0.6f);
+    }
+
+    private int indexOf(long key) {
+        int index = LongHashMap.hash(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Look up a value without boxing.
+     *
+     * @param key The key to look up
+     * @param defaultValue The value to return if the key is not present
+     * @return The mapped value, or defaultValue
+     */
+    public double get(long key, double defaultValue) {
+        int index = indexOf(key);
+        return index < 0 ? defaultValue : values[index];
+    }
+
+    public void put(long key, double value) {
+        int index = LongHashMap.hash(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        used[index] = true;
+        modCount++;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Remove a key from this map.
+     *
+     * @param key The key to remove
+     * @return true if the key was present
+     */
+    public boolean removeKey(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index, null);
+        return true;
+    }
+
+    private void removeAt(int index, SlotIterator iterator) {
+        // Shift back any entries in this probe sequence, as in LongHashMap
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int home = LongHashMap.hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                if (iterator != null && next < index && gap >= index) {
+                    iterator.skip(keys[gap]);
+                }
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        modCount++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) continue;
+            int index = LongHashMap.hash(oldKeys[i]) & mask;
+            while (used[index]) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+            used[index] = true;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(used, false);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Double get(Object key) {
+        if (!(key instanceof Long)) return null;
+        int index = indexOf((Long)key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && containsKey(((Long)key).longValue());
+    }
+
+    @Override
+    public Double put(Long key, Double value) {
+        Double previous = get(key);
+        put(key.longValue(), value.doubleValue());
+        return previous;
+    }
+
+    @Override
+    public Double remove(Object key) {
+        Double previous = get(key);
+        if (previous != null) {
+            removeKey((Long)key);
+        }
+        return previous;
+    }
+
+    @Override
+    public Set<Map.Entry<Long, Double>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, Double>>() {
+            @Override
+            public Iterator<Map.Entry<Long, Double>> iterator() {
+                return new SlotIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private class Entry extends SimpleEntry<Long, Double> {
+        private Entry(long key, double value) {
+            super(key, value);
+        }
+
+        @Override
+        public Double setValue(Double value) {
+            put(getKey().longValue(), value.doubleValue());
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * Walks the table slot by slot, see LongHashMap for how removal is handled.
+     */
+    private class SlotIterator implements Iterator<Map.Entry<Long, Double>> {
+        private int expectedModCount = modCount;
+        private int index = -1;
+        private LongHashSet skipped;
+        private int next = advance(0);
+
+        private int advance(int from) {
+            while (from < used.length && (!used[from] || (skipped != null && skipped.contains(keys[from])))) {
+                from++;
+            }
+            return from;
+        }
+
+        private void skip(long key) {
+            if (skipped == null) {
+                skipped = new LongHashSet();
+            }
+            skipped.add(key);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < used.length;
+        }
+
+        @Override
+        public Map.Entry<Long, Double> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= used.length) {
+                throw new NoSuchElementException();
+            }
+            index = next;
+            next = advance(next + 1);
+            return new Entry(keys[index], values[index]);
+        }
+
+        @Override
+        public void remove() {
+            if (index < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(index, this);
+            expectedModCount = modCount;
+            next = advance(index);
+            index = -1;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.elmakers.mine.bukkit.utility;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An open-addressing hash map keyed on primitive longs.
+ *
+ * This is used for the global block registries, which may hold millions of entries
+ * and are checked on nearly every block a spell touches. Unlike a HashMap, this does
+ * not need a boxed Long and a Node object for each entry.
+ *
+ * The boxed Map interface is still implemented so this can be handed out in place of
+ * a Map&lt;Long, V&gt;, but hot paths should use the primitive get, put, remove and
+ * containsKey methods.
+ *
+ * Null values are not supported, putting a null value will remove the key.
+ * Iterators support removal, and entries write through to the map.
+ *
+ * @param <V> The type of value stored
+ */
+public class LongHashMap<V> extends AbstractMap<Long, V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    private int modCount;
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+
+    /**
+     * Spread the bits of a long key so that packed coordinates hash well.
+     *
+     * @param key The key to hash
+     * @return A well-mixed hash of the key
+     */
+    public static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    static int tableSize(int expectedSize) {
+        int needed = (int)Math.ceil(Math.max(expectedSize, 2) / LOAD_FACTOR);
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                return (V)value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            return remove(key);
+        }
+        int index = hash(key) & mask;
+        Object current;
+        while ((current = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return (V)current;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        modCount++;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object removed = values[index];
+        removeAt(index);
+        return (V)removed;
+    }
+
+    private void removeAt(int index) {
+        removeAt(index, null);
+    }
+
+    private void removeAt(int index, SlotIterator<?> iterator) {
+        // Shift back any entries in this probe sequence, so no tombstones are needed
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                if (iterator != null && next < index && gap >= index) {
+                    // Wrapped around from a slot the iterator has already passed
+                    iterator.skip(keys[gap]);
+                }
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+        size--;
+        modCount++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            Object value = oldValues[i];
+            if (value == null) continue;
+            long key = oldKeys[i];
+            int index = hash(key) & mask;
+            while (values[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the keys in this map, for iterating without boxing.
+     *
+     * @return A new array holding every key currently in the map
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[count++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(values, null);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public V get(Object key) {
+        return key instanceof Long ? get(((Long)key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && containsKey(((Long)key).longValue());
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return key instanceof Long ? remove(((Long)key).longValue()) : null;
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new SlotIterator<V>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    protected V get(int index) {
+                        return (V)values[index];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, V>>() {
+            @Override
+            public Iterator<Map.Entry<Long, V>> iterator() {
+                return new SlotIterator<Map.Entry<Long, V>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    protected Map.Entry<Long, V> get(int index) {
+                        return new Entry(keys[index], (V)values[index]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private class Entry extends SimpleEntry<Long, V> {
+        private Entry(long key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            if (value == null) {
+                throw new NullPointerException("LongHashMap does not support null values");
+            }
+            put(getKey().longValue(), value);
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * Walks the table slot by slot.
+     *
+     * Removing through the iterator shifts later entries back into the freed slot,
+     * so the iterator looks at that slot again. An entry near the start of the table
+     * can also be shifted back around to the end, which the iterator has not reached
+     * yet, so those entries are remembered and skipped.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private int expectedModCount = modCount;
+        private int index = -1;
+        private LongHashSet skipped;
+        private int next = advance(0);
+
+        private int advance(int from) {
+            while (from < values.length && (values[from] == null || (skipped != null && skipped.contains(keys[from])))) {
+                from++;
+            }
+            return from;
+        }
+
+        private void skip(long key) {
+            if (skipped == null) {
+                skipped = new LongHashSet();
+            }
+            skipped.add(key);
+        }
+
+        protected abstract T get(int index);
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        public T next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= values.length) {
+                throw new NoSuchElementException();
+            }
+            index = next;
+            next = advance(next + 1);
+            return get(index);
+        }
+
+        @Override
+        public void remove() {
+            if (index < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(index, this);
+            expectedModCount = modCount;
+            next = advance(index);
+            index = -1;
+        }
+    }
+}
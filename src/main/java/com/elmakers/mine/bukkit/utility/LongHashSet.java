@@ -0,0 +1,153 @@
+package com.elmakers.mine.bukkit.utility;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash set of primitive longs.
+ *
+ * This is used to index the blocks in a BlockList by id, without boxing each id
+ * into a Long and wrapping it in a HashMap node.
+ */
+public class LongHashSet {
+    // Zero marks an empty slot, so a zero key is tracked separately
+    private long[] keys;
+    private boolean hasZero;
+    private int size;
+    private int mask;
+    private int resizeAt;
+
+    public LongHashSet() {
+        this(0);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(LongHashMap.tableSize(expectedSize));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int)(capacity * 0.6f);
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) return hasZero;
+        int index = LongHashMap.hash(key) & mask;
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Add a key to this set.
+     *
+     * @param key The key to add
+     * @return true if the key was not already present
+     */
+    public boolean add(long key) {
+        if (key == 0) {
+            if (hasZero) return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int index = LongHashMap.hash(key) & mask;
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a key from this set.
+     *
+     * @param key The key to remove
+     * @return true if the key was present
+     */
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (!hasZero) return false;
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int index = LongHashMap.hash(key) & mask;
+        long current;
+        while ((current = keys[index]) != key) {
+            if (current == 0) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // Shift back the rest of the probe sequence
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while ((current = keys[next]) != 0) {
+            int home = LongHashMap.hash(current) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = current;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        size--;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        allocate(capacity);
+        for (long key : oldKeys) {
+            if (key == 0) continue;
+            int index = LongHashMap.hash(key) & mask;
+            while (keys[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    public long[] toArray() {
+        long[] result = new long[size];
+        int count = 0;
+        if (hasZero) {
+            result[count++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+package com.elmakers.mine.bukkit.utility;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map of primitive longs to primitive ints.
+ *
+ * This is mainly used to map packed block keys to row or bucket indices.
+ */
+public class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeAt;
+
+    public LongIntHashMap() {
+        this(0);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(LongHashMap.tableSize(expectedSize));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = (int)(capacity * 0.6f);
+    }
+
+    private int indexOf(long key) {
+        int index = LongHashMap.hash(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Look up a value.
+     *
+     * @param key The key to look up
+     * @param defaultValue The value to return if the key is not present
+     * @return The mapped value, or defaultValue
+     */
+    public int get(long key, int defaultValue) {
+        int index = indexOf(key);
+        return index < 0 ? defaultValue : values[index];
+    }
+
+    public void put(long key, int value) {
+        int index = LongHashMap.hash(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        used[index] = true;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Remove a key from this map.
+     *
+     * @param key The key to remove
+     * @return true if the key was present
+     */
+    public boolean remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return false;
+        }
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int home = LongHashMap.hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) continue;
+            int index = LongHashMap.hash(oldKeys[i]) & mask;
+            while (used[index]) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+            used[index] = true;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(used, false);
+        size = 0;
+    }
+}
@@ -230,6 +230,7 @@ public class NMSUtils {
     protected static Field class_EntityPlayer_playerConnectionField;
     protected static Field class_PlayerConnection_floatCountField;
     protected static Field class_Chunk_doneField;
+    protected static Method class_Chunk_initLightingMethod;
     protected static Field class_CraftItemStack_getHandleField;
     protected static Field class_EntityArrow_lifeField = null;
     protected static Field class_EntityArrow_fromPlayerField;
@@ -491,6 +492,12 @@ public class NMSUtils {
             {
                 class_EntityArrow_lifeField.setAccessible(true);
             }
+
+            try {
+                class_Chunk_initLightingMethod = class_Chunk.getMethod("initLighting");
+            } catch (Throwable ex) {
+                class_Chunk_initLightingMethod = null;
+            }
         }
         catch (Throwable ex) {
             failed = true;
@@ -598,6 +605,28 @@ public class NMSUtils {
         return done;
     }
 
+    /**
+     * Recalculate the sky light of a loaded chunk.
+     *
+     * If relighting fails, a warning is logged and it is not tried again.
+     *
+     * @return false if this is not supported on this server
+     */
+    public static boolean relight(org.bukkit.Chunk chunk) {
+        if (class_Chunk_initLightingMethod == null) return false;
+        Object chunkHandle = getHandle(chunk);
+        if (chunkHandle == null) return false;
+        try {
+            class_Chunk_initLightingMethod.invoke(chunkHandle);
+        } catch (Throwable ex) {
+            // Warn once, rather than for every chunk of every batch
+            class_Chunk_initLightingMethod = null;
+            Bukkit.getLogger().warning("Failed to relight chunk, relighting disabled: " + ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
     public static Object getHandle(org.bukkit.Chunk chunk) {
         Object handle = null;
         try {
@@ -0,0 +1,147 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.elmakers.mine.bukkit.utility.LongHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockKeyTest {
+    private static final int[] EDGES = { 0, 1, -1, 15, 16, -16, -17, 8388607, -8388608 };
+
+    @Test
+    public void testPackRoundTrip() {
+        for (int world : new int[] { 0, 1, BlockKey.PACKED_WORLDS - 1 }) {
+            for (int x : EDGES) {
+                for (int z : EDGES) {
+                    for (int y : new int[] { -512, -1, 0, 255, 511 }) {
+                        long key = BlockKey.toKey(world, x, y, z);
+                        assertEquals(world, BlockKey.getWorldIndex(key));
+                        assertEquals(x, BlockKey.getX(key));
+                        assertEquals(y, BlockKey.getY(key));
+                        assertEquals(z, BlockKey.getZ(key));
+                        assertTrue(BlockKey.isPacked(key));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOutOfRange() {
+        // Past the packed range, out to the world border, and in worlds past the packed ones
+        int[] far = { 8388608, -8388609, 16777216, 29999999, -30000000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        int[] worlds = { 0, BlockKey.PACKED_WORLDS, BlockKey.PACKED_WORLDS + 1, 1000 };
+        LongHashSet keys = new LongHashSet();
+        int count = 0;
+        for (int world : worlds) {
+            for (int x : far) {
+                for (int z : EDGES) {
+                    for (int y : new int[] { -513, 0, 512, 4096 }) {
+                        long key = BlockKey.toKey(world, x, y, z);
+                        assertEquals(world, BlockKey.getWorldIndex(key));
+                        assertEquals(x, BlockKey.getX(key));
+                        assertEquals(y, BlockKey.getY(key));
+                        assertEquals(z, BlockKey.getZ(key));
+                        assertEquals(key, BlockKey.fromChunkOrder(BlockKey.toChunkOrder(key)));
+
+                        // The same position always gets the same key, swapped X and Z do not
+                        assertEquals(key, BlockKey.toKey(world, x, y, z));
+                        assertTrue(keys.add(key));
+                        assertTrue(keys.add(BlockKey.toKey(world, z, y, x)) || x == z);
+                        count += x == z ? 1 : 2;
+                    }
+                }
+            }
+        }
+        assertEquals(count, keys.size());
+    }
+
+    @Test
+    public void testNoWrapping() {
+        // Positions a whole packed range apart used to share a key
+        LongHashSet keys = new LongHashSet();
+        for (int x : new int[] { 5, 5 + (1 << 24), 5 - (1 << 24), 5 + (1 << 25) }) {
+            assertTrue(keys.add(BlockKey.toKey(0, x, 64, 7)));
+            assertTrue(keys.add(BlockKey.toKey(0, 7, 64, x)));
+        }
+        assertTrue(keys.add(BlockKey.toKey(BlockKey.PACKED_WORLDS, 5, 64, 7)));
+        assertTrue(keys.add(BlockKey.toKey(BlockKey.PACKED_WORLDS + 1, 5, 64, 7)));
+        assertTrue(keys.add(BlockKey.toKey(0, 5, 64 + 1024, 7)));
+    }
+
+    @Test
+    public void testOutOfRangeChunkKey() {
+        int world = BlockKey.PACKED_WORLDS + 2;
+        long key = BlockKey.toKey(world, -29999999, 64, 29999999);
+        long chunk = BlockKey.getChunkKey(key);
+        assertEquals(BlockKey.getChunkKey(world, -29999999 >> 4, 29999999 >> 4), chunk);
+        assertEquals(chunk, BlockKey.getChunkKey(BlockKey.toKey(world, -29999999 & ~0xF, 0, 29999999 & ~0xF)));
+        assertEquals(-29999999 >> 4, BlockKey.getChunkX(key));
+        assertEquals(29999999 >> 4, BlockKey.getChunkZ(key));
+        assertEquals(world, BlockKey.getWorldIndex(chunk));
+
+        // Y out of range in a packed chunk still shares the packed chunk key
+        long high = BlockKey.toKey(2, 40, 2000, -40);
+        assertFalse(BlockKey.isPacked(high));
+        assertEquals(BlockKey.getChunkKey(BlockKey.toKey(2, 40, 0, -40)), BlockKey.getChunkKey(high));
+    }
+
+    @Test
+    public void testChunkKey() {
+        long key = BlockKey.toKey(3, -17, 64, 33);
+        assertEquals(BlockKey.getChunkKey(3, -2, 2), BlockKey.getChunkKey(key));
+        assertEquals(BlockKey.getChunkKey(key), BlockKey.getChunkKey(BlockKey.toKey(3, -32, 0, 47)));
+        assertTrue(BlockKey.getChunkKey(key) != BlockKey.getChunkKey(BlockKey.toKey(3, -16, 64, 33)));
+        assertTrue(BlockKey.getChunkKey(key) != BlockKey.getChunkKey(BlockKey.toKey(4, -17, 64, 33)));
+        assertEquals(-2, BlockKey.getChunkX(key));
+        assertEquals(2, BlockKey.getChunkZ(key));
+    }
+
+    @Test
+    public void testChunkOrderRoundTrip() {
+        for (int x : EDGES) {
+            for (int z : EDGES) {
+                for (int y : new int[] { -512, 0, 100, 511 }) {
+                    long key = BlockKey.toKey(5, x, y, z);
+                    assertEquals(key, BlockKey.fromChunkOrder(BlockKey.toChunkOrder(key)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChunkOrderGroupsChunks() {
+        Random random = new Random(42);
+        long[] orders = new long[5000];
+        for (int i = 0; i < orders.length; i++) {
+            int x = random.nextInt(96) - 48;
+            int z = random.nextInt(96) - 48;
+            int y = random.nextInt(256);
+            orders[i] = BlockKey.toChunkOrder(BlockKey.toKey(random.nextInt(2), x, y, z));
+        }
+        Arrays.sort(orders);
+
+        // Once a chunk is left behind it never comes back, and Y never goes down within a chunk
+        LongHashSet finished = new LongHashSet();
+        long currentChunk = BlockKey.getChunkKey(BlockKey.fromChunkOrder(orders[0]));
+        int lastY = Integer.MIN_VALUE;
+        for (long order : orders) {
+            long key = BlockKey.fromChunkOrder(order);
+            long chunk = BlockKey.getChunkKey(key);
+            if (chunk != currentChunk) {
+                assertTrue(finished.add(currentChunk));
+                currentChunk = chunk;
+                lastY = Integer.MIN_VALUE;
+            }
+            assertFalse(finished.contains(chunk));
+            assertTrue(BlockKey.getY(key) >= lastY);
+            lastY = BlockKey.getY(key);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.Material;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BlockListCodecTest {
+    private static List<com.elmakers.mine.bukkit.api.block.BlockData> createBlocks() {
+        List<com.elmakers.mine.bukkit.api.block.BlockData> blocks = new ArrayList<com.elmakers.mine.bukkit.api.block.BlockData>();
+        Material[] materials = { Material.STONE, Material.DIRT, Material.WOOL, Material.AIR };
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(64) - 32;
+            int y = random.nextInt(256);
+            int z = random.nextInt(64) - 32;
+            String world = random.nextInt(4) == 0 ? "world_nether" : "world";
+            BlockData block = new BlockData(x, y, z, world, materials[random.nextInt(materials.length)], (byte)random.nextInt(16));
+            blocks.add(block);
+        }
+
+        // Far from the origin, negative data, wildcard data and no material at all
+        blocks.add(new BlockData(8000000, 0, -8000000, "world", Material.STONE, (byte)0));
+        blocks.add(new BlockData(-8000000, 255, 8000000, "world", Material.STONE, (byte)-1));
+        BlockData wildcard = new BlockData(1, 2, 3, "world", Material.STONE, (byte)0);
+        wildcard.setData(null);
+        blocks.add(wildcard);
+        blocks.add(new BlockData(4, 5, 6, "world", null, (byte)0));
+        return blocks;
+    }
+
+    private static void assertRoundTrip(List<com.elmakers.mine.bukkit.api.block.BlockData> blocks, boolean compress) throws IOException {
+        List<BlockData> decoded = BlockListCodec.decode(BlockListCodec.encode(blocks, compress));
+        assertEquals(blocks.size(), decoded.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            com.elmakers.mine.bukkit.api.block.BlockData expected = blocks.get(i);
+            BlockData actual = decoded.get(i);
+            assertEquals(expected.getWorldName(), actual.getWorldName());
+            assertEquals(expected.getPosition(), actual.getPosition());
+            assertEquals(expected.getMaterial(), actual.getMaterial());
+            assertEquals(expected.getData(), actual.getData());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        assertRoundTrip(createBlocks(), false);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        assertRoundTrip(createBlocks(), true);
+    }
+
+    @Test
+    public void testStringRoundTrip() throws IOException {
+        List<com.elmakers.mine.bukkit.api.block.BlockData> blocks = createBlocks();
+        List<BlockData> decoded = BlockListCodec.decodeString(BlockListCodec.encodeString(blocks, true));
+        assertEquals(blocks.size(), decoded.size());
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertRoundTrip(new ArrayList<com.elmakers.mine.bukkit.api.block.BlockData>(), true);
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] encoded;
+        try {
+            encoded = BlockListCodec.encode(createBlocks(), false);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (int length = 0; length < encoded.length; length += 7) {
+            try {
+                BlockListCodec.decode(Arrays.copyOf(encoded, length));
+                fail("Decoded truncated data of length " + length);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testCorrupt() throws IOException {
+        // Any damage must come back as an IOException, or decode to something
+        Random random = new Random(11);
+        byte[] encoded = BlockListCodec.encode(createBlocks(), false);
+        for (int i = 0; i < 2000; i++) {
+            byte[] corrupt = encoded.clone();
+            int changes = 1 + random.nextInt(4);
+            for (int change = 0; change < changes; change++) {
+                corrupt[2 + random.nextInt(corrupt.length - 2)] = (byte)random.nextInt(256);
+            }
+            try {
+                BlockListCodec.decode(corrupt);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testHugeCounts() {
+        // Version, flags, then a world count of Integer.MAX_VALUE
+        byte[] corrupt = { 1, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07 };
+        try {
+            BlockListCodec.decode(corrupt);
+            fail("Decoded a huge world table");
+        } catch (IOException expected) {
+        }
+
+        // A negative world count
+        corrupt = new byte[] { 1, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F };
+        try {
+            BlockListCodec.decode(corrupt);
+            fail("Decoded a negative world table");
+        } catch (IOException expected) {
+        }
+    }
+}
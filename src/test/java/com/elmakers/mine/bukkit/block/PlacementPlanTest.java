@@ -0,0 +1,55 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import com.elmakers.mine.bukkit.utility.Base64Coder;
+
+import static org.junit.Assert.fail;
+
+public class PlacementPlanTest {
+    private static String encode(int paletteCount, int size, int paletteIndex) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(1);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        out.writeUTF("world");
+        out.writeInt(paletteCount);
+        out.writeInt(size);
+        if (size > 0) {
+            out.writeInt(1);
+            out.writeShort(64);
+            out.writeInt(-1);
+            out.writeInt(paletteIndex);
+        }
+        out.close();
+        return new String(Base64Coder.encode(bytes.toByteArray()));
+    }
+
+    private static void assertInvalid(String encoded) {
+        try {
+            PlacementPlan.decodeString(encoded);
+            fail("Decoded invalid plan data");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testHugeCounts() throws IOException {
+        assertInvalid(encode(Integer.MAX_VALUE, 0, 0));
+        assertInvalid(encode(-1, 0, 0));
+        assertInvalid(encode(0, -1, 0));
+
+        // Only one placement follows, the rest are missing
+        assertInvalid(encode(0, Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void testBadPaletteIndex() throws IOException {
+        assertInvalid(encode(0, 1, 0));
+        assertInvalid(encode(0, 1, -1));
+    }
+}
@@ -0,0 +1,83 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bukkit.Material;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class UndoOrderingTest {
+    private static com.elmakers.mine.bukkit.api.block.BlockData[] createBlocks() {
+        Material[] materials = { Material.STONE, Material.DIRT, Material.TORCH, Material.LADDER };
+        Random random = new Random(5);
+        com.elmakers.mine.bukkit.api.block.BlockData[] blocks = new com.elmakers.mine.bukkit.api.block.BlockData[500];
+        for (int i = 0; i < blocks.length; i++) {
+            int x = random.nextInt(64) - 32;
+            int y = random.nextInt(16);
+            int z = random.nextInt(64) - 32;
+            blocks[i] = new BlockData(x, y, z, "world", materials[random.nextInt(materials.length)], (byte)0);
+        }
+        return blocks;
+    }
+
+    /**
+     * The order UndoList.sort gave before UndoOrdering: reversed, then a stable sort
+     * with attachables last and by Y, if there are attachables.
+     */
+    private static List<com.elmakers.mine.bukkit.api.block.BlockData> baselineSort(com.elmakers.mine.bukkit.api.block.BlockData[] blocks, final Set<Material> attachables) {
+        List<com.elmakers.mine.bukkit.api.block.BlockData> sorted = new ArrayList<com.elmakers.mine.bukkit.api.block.BlockData>(Arrays.asList(blocks));
+        Collections.reverse(sorted);
+        if (attachables == null) return sorted;
+        Collections.sort(sorted, new Comparator<com.elmakers.mine.bukkit.api.block.BlockData>() {
+            @Override
+            public int compare(com.elmakers.mine.bukkit.api.block.BlockData block1, com.elmakers.mine.bukkit.api.block.BlockData block2) {
+                boolean attachable1 = attachables.contains(block1.getMaterial());
+                boolean attachable2 = attachables.contains(block2.getMaterial());
+                if (attachable1 && !attachable2) {
+                    return 1;
+                }
+                if (attachable2 && !attachable1) {
+                    return -1;
+                }
+                return block1.getPosition().getBlockY() - block2.getPosition().getBlockY();
+            }
+        });
+        return sorted;
+    }
+
+    private static void assertBaselineOrder(Set<Material> attachables) {
+        com.elmakers.mine.bukkit.api.block.BlockData[] blocks = createBlocks();
+        List<com.elmakers.mine.bukkit.api.block.BlockData> expected = baselineSort(blocks, attachables);
+
+        // UndoList reverses the list before sorting it
+        com.elmakers.mine.bukkit.api.block.BlockData[] sorted = new com.elmakers.mine.bukkit.api.block.BlockData[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            sorted[blocks.length - 1 - i] = blocks[i];
+        }
+        UndoOrdering.sort(sorted, attachables);
+        for (int i = 0; i < sorted.length; i++) {
+            assertTrue("Out of order at " + i, sorted[i] == expected.get(i));
+        }
+    }
+
+    @Test
+    public void testNoAttachables() {
+        assertBaselineOrder(null);
+    }
+
+    @Test
+    public void testAttachables() {
+        Set<Material> attachables = new HashSet<Material>();
+        attachables.add(Material.TORCH);
+        attachables.add(Material.LADDER);
+        assertBaselineOrder(attachables);
+    }
+}
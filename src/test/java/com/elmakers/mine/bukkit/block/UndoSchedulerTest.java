@@ -0,0 +1,195 @@
+package com.elmakers.mine.bukkit.block;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UndoSchedulerTest {
+    private static final long ROOT = 1 << 8;
+    private static final long LEVEL_1 = ROOT << 6;
+    private static final long LEVEL_2 = LEVEL_1 << 6;
+    private static final long MAX_DELAY = 1L << 26;
+
+    // Lines up with the top wheel, so every wheel wraps on the way to a due tick
+    private static final long START = 3 * MAX_DELAY;
+
+    private long now;
+
+    @Before
+    public void setUp() {
+        UndoScheduler.reset();
+        advanceTo(START);
+    }
+
+    @After
+    public void tearDown() {
+        UndoScheduler.reset();
+    }
+
+    private List<UndoList> advanceTo(long tick) {
+        now = tick;
+        return UndoScheduler.getDue(tick * UndoScheduler.TICK_MILLIS);
+    }
+
+    private UndoList schedule(long tick) {
+        UndoList list = new UndoList(null);
+        schedule(list, tick);
+        return list;
+    }
+
+    private void schedule(UndoList list, long tick) {
+        UndoScheduler.schedule(list, tick * UndoScheduler.TICK_MILLIS, now * UndoScheduler.TICK_MILLIS);
+    }
+
+    /**
+     * Schedule a list at each delay, from a tick that may not line up with any wheel,
+     * and check it fires on its due tick and not the one before.
+     */
+    private void assertFiresOnTime(long from, long... delays) {
+        if (from > now) {
+            assertTrue(advanceTo(from).isEmpty());
+        }
+        for (long delay : delays) {
+            long due = from + delay;
+            UndoList list = schedule(due);
+            assertTrue(UndoScheduler.isScheduled(list));
+            assertTrue("Fired early, delay " + delay, advanceTo(due - 1).isEmpty());
+            List<UndoList> fired = advanceTo(due);
+            assertEquals("Not fired on time, delay " + delay, 1, fired.size());
+            assertTrue(fired.get(0) == list);
+            assertFalse(UndoScheduler.isScheduled(list));
+            from = due;
+        }
+        assertEquals(0, UndoScheduler.size());
+    }
+
+    @Test
+    public void testRootBoundary() {
+        assertFiresOnTime(START, 1, 2, ROOT - 1, ROOT, ROOT + 1);
+        assertFiresOnTime(now + 100, ROOT, ROOT - 1, ROOT + 1, 2 * ROOT);
+    }
+
+    @Test
+    public void testLevelBoundaries() {
+        assertFiresOnTime(START, LEVEL_1 - 1, LEVEL_1, LEVEL_1 + 1, LEVEL_2 - 1, LEVEL_2, LEVEL_2 + 1);
+        assertFiresOnTime(now + ROOT - 1, LEVEL_1, LEVEL_1 + ROOT, LEVEL_2, LEVEL_2 + LEVEL_1);
+        assertFiresOnTime(now + 77, LEVEL_1 - 1, LEVEL_1 + 1, LEVEL_2 - 1, LEVEL_2 + 1);
+    }
+
+    @Test
+    public void testOverflow() {
+        assertFiresOnTime(START, MAX_DELAY, MAX_DELAY + 1);
+        assertFiresOnTime(now + 12345, MAX_DELAY + ROOT + 1, 2 * MAX_DELAY + 3);
+    }
+
+    @Test
+    public void testOverdue() {
+        UndoList list = schedule(now - 100);
+        List<UndoList> fired = advanceTo(now + 1);
+        assertEquals(1, fired.size());
+        assertTrue(fired.get(0) == list);
+
+        list = schedule(now);
+        fired = advanceTo(now + 1);
+        assertEquals(1, fired.size());
+        assertTrue(fired.get(0) == list);
+    }
+
+    @Test
+    public void testCancel() {
+        long[] delays = { 1, ROOT + 1, LEVEL_1 + 1, LEVEL_2 + 1, MAX_DELAY + 1 };
+        List<UndoList> lists = new ArrayList<UndoList>();
+        for (long delay : delays) {
+            lists.add(schedule(now + delay));
+        }
+        assertEquals(delays.length, UndoScheduler.size());
+        for (UndoList list : lists) {
+            assertTrue(UndoScheduler.cancel(list));
+            assertFalse(UndoScheduler.cancel(list));
+            assertFalse(UndoScheduler.isScheduled(list));
+        }
+        assertEquals(0, UndoScheduler.size());
+
+        // Keep one list scheduled past the others, so the wheel has to step through them
+        long last = now + MAX_DELAY + 2;
+        UndoList keep = schedule(last);
+        assertTrue(advanceTo(last - 1).isEmpty());
+        List<UndoList> fired = advanceTo(last);
+        assertEquals(1, fired.size());
+        assertTrue(fired.get(0) == keep);
+    }
+
+    @Test
+    public void testReschedule() {
+        // Further out, across each boundary, then back in again
+        long start = now;
+        long[] dues = { start + 10, start + LEVEL_1 + 5, start + MAX_DELAY + 9, start + LEVEL_2 + 3, start + ROOT + 1 };
+        UndoList list = schedule(dues[0]);
+        for (long due : dues) {
+            schedule(list, due);
+            assertEquals(1, UndoScheduler.size());
+        }
+        long due = dues[dues.length - 1];
+        assertTrue(advanceTo(due - 1).isEmpty());
+        assertEquals(1, advanceTo(due).size());
+
+        // Nothing left behind at any of the earlier times
+        assertTrue(advanceTo(start + MAX_DELAY + 10).isEmpty());
+
+        // Moved after the wheel has run part way
+        list = schedule(now + LEVEL_2 + 1);
+        advanceTo(now + LEVEL_1 + 3);
+        due = now + 2;
+        schedule(list, due);
+        assertTrue(advanceTo(due - 1).isEmpty());
+        assertEquals(1, advanceTo(due).size());
+    }
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(3);
+        long[] ranges = { ROOT, LEVEL_1, LEVEL_2, 4 * LEVEL_2 };
+        Map<UndoList, Long> expected = new HashMap<UndoList, Long>();
+        List<UndoList> lists = new ArrayList<UndoList>();
+        for (int i = 0; i < 200; i++) {
+            lists.add(new UndoList(null));
+        }
+
+        long end = now + 8 * LEVEL_2;
+        while (now < end) {
+            for (int change = random.nextInt(20); change > 0; change--) {
+                UndoList list = lists.get(random.nextInt(lists.size()));
+                if (random.nextInt(4) == 0) {
+                    assertEquals(expected.remove(list) != null, UndoScheduler.cancel(list));
+                } else {
+                    long due = now + 1 + (long)(random.nextDouble() * ranges[random.nextInt(ranges.length)]);
+                    schedule(list, due);
+                    expected.put(list, due);
+                }
+            }
+
+            long step = 1 + random.nextInt(random.nextBoolean() ? 8 : (int)LEVEL_1);
+            List<UndoList> fired = advanceTo(now + step);
+            for (UndoList list : fired) {
+                Long due = expected.remove(list);
+                assertTrue("Fired an unscheduled list", due != null);
+                assertTrue("Fired early", due <= now);
+                assertTrue("Fired late", due > now - step);
+            }
+            for (Long due : expected.values()) {
+                assertTrue("Missed a due list", due > now);
+            }
+            assertEquals(expected.size(), UndoScheduler.size());
+        }
+    }
+}